@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.bench;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.lang.php.PhpVerticleFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares starting a PHP verticle with interpreted pages, compiled pages
+ * and lazily compiled pages.
+ *
+ * Deploys and undeploys a generated script a number of times in each mode,
+ * with startup timings enabled, and prints the time of the first
+ * deployment, which pays for parsing or compiling the page, and the median
+ * parse, execute and total times of the following ones, which reuse it:
+ *
+ * <pre>
+ * java -cp vertx-lang-php.jar:bench io.vertx.lang.php.bench.CompiledStartupBenchmark [deployments] [functions]
+ * </pre>
+ */
+public class CompiledStartupBenchmark {
+
+    private static final String TIMINGS_ADDRESS = "bench.startup.timings";
+
+    public static void main(String[] args) throws Exception {
+        int deployments = Math.max(2, args.length > 0 ? Integer.parseInt(args[0]) : 20);
+        int functions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        File script = File.createTempFile("compiled-startup-benchmark", ".php");
+        script.deleteOnExit();
+        Files.write(script.toPath(), script(functions).getBytes(StandardCharsets.UTF_8));
+
+        System.out.println("mode\tfirst ms\tparse ms\texecute ms\ttotal ms");
+        run("interpreted", script, false, false, deployments);
+        run("compiled", script, true, false, deployments);
+        run("lazy", script, true, true, deployments);
+    }
+
+    /**
+     * Generates a script declaring a number of functions and calling each
+     * of them in a loop, so both loading and running it take a while.
+     */
+    private static String script(int functions) {
+        StringBuilder php = new StringBuilder("<?php\n");
+        for (int i = 0; i < functions; i++) {
+            php.append("function f").append(i).append("($n) {\n")
+                .append("    $sum = 0;\n")
+                .append("    for ($j = 0; $j < $n; $j++) {\n")
+                .append("        $sum += ($j * ").append(i + 1).append(") % 7;\n")
+                .append("    }\n")
+                .append("    return $sum;\n")
+                .append("}\n");
+        }
+        php.append("$total = 0;\n");
+        for (int i = 0; i < functions; i++) {
+            php.append("$total += f").append(i).append("(100);\n");
+        }
+        return php.toString();
+    }
+
+    private static void run(String mode, File script, boolean compile, boolean lazyCompile, int deployments)
+        throws Exception {
+        Vertx vertx = Vertx.vertx();
+        PhpVerticleFactory factory = new PhpVerticleFactory("php")
+            .setCompile(compile)
+            .setLazyCompile(lazyCompile)
+            .setStartupTimings(true, TIMINGS_ADDRESS);
+        vertx.registerVerticleFactory(factory);
+
+        BlockingQueue<JsonObject> timings = new ArrayBlockingQueue<>(deployments);
+        CompletableFuture<Void> registered = new CompletableFuture<>();
+        vertx.eventBus().<JsonObject>consumer(TIMINGS_ADDRESS, message -> timings.offer(message.body()))
+            .completionHandler(result -> registered.complete(null));
+        registered.get();
+
+        double first = 0;
+        double[] parse = new double[deployments - 1];
+        double[] execute = new double[deployments - 1];
+        double[] total = new double[deployments - 1];
+        for (int i = 0; i < deployments; i++) {
+            String id = deploy(vertx, script);
+            JsonObject phases = timings.poll(60, TimeUnit.SECONDS).getJsonObject("phases");
+            if (i == 0) {
+                first = phases.getDouble("total");
+            }
+            else {
+                parse[i - 1] = phases.getDouble("parse", 0.0);
+                execute[i - 1] = phases.getDouble("execute", 0.0);
+                total[i - 1] = phases.getDouble("total");
+            }
+            undeploy(vertx, id);
+        }
+        System.out.printf("%s\t%.1f\t%.1f\t%.1f\t%.1f%n", mode, first, median(parse), median(execute), median(total));
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        vertx.close(result -> closed.complete(null));
+        closed.get();
+    }
+
+    private static String deploy(Vertx vertx, File script) throws Exception {
+        CompletableFuture<String> deployed = new CompletableFuture<>();
+        vertx.deployVerticle(script.getPath(), result -> {
+            if (result.failed()) {
+                deployed.completeExceptionally(result.cause());
+            }
+            else {
+                deployed.complete(result.result());
+            }
+        });
+        return deployed.get();
+    }
+
+    private static void undeploy(Vertx vertx, String id) throws Exception {
+        CompletableFuture<Void> undeployed = new CompletableFuture<>();
+        vertx.undeploy(id, result -> undeployed.complete(null));
+        undeployed.get();
+    }
+
+    private static double median(double[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+}
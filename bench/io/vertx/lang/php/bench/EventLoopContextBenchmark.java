@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.bench;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.lang.php.PhpVerticleFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how HTTP throughput of a PHP verticle scales with the number of
+ * event loops, with a single shared Quercus context and with a context per
+ * event loop.
+ *
+ * Deploys one instance of a PHP HTTP server per event loop and drives it
+ * with a Vert.x HTTP client, for 1, 2, 4... event loops up to the number of
+ * processors, printing the requests per second of each setup along with how
+ * long its event loop threads spent blocked on monitors per second, the lock
+ * contention a context per event loop is meant to remove:
+ *
+ * <pre>
+ * java -cp vertx-lang-php.jar:bench io.vertx.lang.php.bench.EventLoopContextBenchmark [seconds] [connections]
+ * </pre>
+ */
+public class EventLoopContextBenchmark {
+
+    private static final int PORT = 8181;
+
+    private static final String SCRIPT =
+        "<?php\n" +
+        "getVertx()->createHttpServer()->requestHandler(\\Vertx\\Util\\HandlerFactory::createGenericHandler(function($request) {\n" +
+        "    $items = array();\n" +
+        "    for ($i = 0; $i < 200; $i++) {\n" +
+        "        $items['k' . $i] = str_repeat('x', $i % 16);\n" +
+        "    }\n" +
+        "    $request->response()->end(json_encode($items));\n" +
+        "}))->listen(" + PORT + ");\n";
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        File script = File.createTempFile("event-loop-context-benchmark", ".php");
+        script.deleteOnExit();
+        Files.write(script.toPath(), SCRIPT.getBytes(StandardCharsets.UTF_8));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+
+        System.out.println("eventLoops\tshared req/s\tshared blocked ms/s\tper loop req/s\tper loop blocked ms/s");
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int eventLoops = 1; eventLoops <= processors; eventLoops *= 2) {
+            double[] shared = run(script, eventLoops, false, seconds, connections);
+            double[] perLoop = run(script, eventLoops, true, seconds, connections);
+            System.out.printf("%d\t%.0f\t%.1f\t%.0f\t%.1f%n", eventLoops, shared[0], shared[1], perLoop[0], perLoop[1]);
+        }
+    }
+
+    /**
+     * Runs the server with a number of event loops and returns its throughput
+     * and the milliseconds per second its event loops spent blocked.
+     */
+    private static double[] run(File script, int eventLoops, boolean contextPerEventLoop, int seconds, int connections)
+        throws Exception {
+        Vertx server = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(eventLoops));
+        PhpVerticleFactory factory = new PhpVerticleFactory("php").setContextPerEventLoop(contextPerEventLoop);
+        server.registerVerticleFactory(factory);
+        // Contexts are built in the background once the factory is registered,
+        // deploy once they are all there so no verticle falls back to sharing.
+        if (contextPerEventLoop) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (!factory.isEventLoopContextsReady()) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Event loop contexts not ready after 60s");
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        CountDownLatch deployed = new CountDownLatch(1);
+        server.deployVerticle(script.getPath(), new DeploymentOptions().setInstances(eventLoops), result -> {
+            if (result.failed()) {
+                result.cause().printStackTrace();
+            }
+            deployed.countDown();
+        });
+        deployed.await();
+        // Taken before the client starts event loop threads of its own.
+        long[] serverLoops = eventLoopThreads();
+
+        Vertx client = Vertx.vertx();
+        HttpClient http = client.createHttpClient(new HttpClientOptions()
+            .setDefaultPort(PORT).setMaxPoolSize(connections).setKeepAlive(true));
+        AtomicLong completed = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        // Warm up the JIT and the page caches before measuring.
+        load(http, connections, running, new AtomicLong());
+        Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, seconds / 2)));
+        running.set(false);
+        Thread.sleep(500);
+
+        running.set(true);
+        long blockedBefore = blockedMillis(serverLoops);
+        long start = System.nanoTime();
+        load(http, connections, running, completed);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long count = completed.get();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long blocked = blockedMillis(serverLoops) - blockedBefore;
+        running.set(false);
+
+        if (contextPerEventLoop && factory.getSharedContextFallbacks() > 0) {
+            System.err.println(factory.getSharedContextFallbacks() + " verticles ran in the shared context");
+        }
+
+        close(client);
+        close(server);
+        return new double[] { count / elapsed, blocked / elapsed };
+    }
+
+    /**
+     * @return the ids of the event loop threads running now
+     */
+    private static long[] eventLoopThreads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return Arrays.stream(threads.getThreadInfo(threads.getAllThreadIds()))
+            .filter(info -> info != null && info.getThreadName().startsWith("vert.x-eventloop-thread-"))
+            .mapToLong(ThreadInfo::getThreadId)
+            .toArray();
+    }
+
+    /**
+     * Sums how long the threads have been blocked entering monitors, 0 when
+     * the JVM does not measure it.
+     */
+    private static long blockedMillis(long[] ids) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadContentionMonitoringEnabled()) {
+            return 0;
+        }
+        long blocked = 0;
+        for (ThreadInfo info : threads.getThreadInfo(ids)) {
+            if (info != null) {
+                blocked += info.getBlockedTime();
+            }
+        }
+        return blocked;
+    }
+
+    /**
+     * Keeps a request in flight on every connection while running.
+     */
+    private static void load(HttpClient http, int connections, AtomicBoolean running, AtomicLong completed) {
+        for (int i = 0; i < connections; i++) {
+            request(http, running, completed);
+        }
+    }
+
+    private static void request(HttpClient http, AtomicBoolean running, AtomicLong completed) {
+        if (!running.get()) {
+            return;
+        }
+        http.getNow("/", response -> response.bodyHandler(body -> {
+            completed.incrementAndGet();
+            request(http, running, completed);
+        }));
+    }
+
+    private static void close(Vertx vertx) throws InterruptedException, IOException {
+        CountDownLatch closed = new CountDownLatch(1);
+        vertx.close(result -> closed.countDown());
+        closed.await();
+    }
+
+}
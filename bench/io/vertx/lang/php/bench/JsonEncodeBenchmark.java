@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.bench;
+
+import io.vertx.lang.php.util.JSON;
+import io.vertx.lang.php.util.PhpTypes;
+
+import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.DoubleValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.page.InterpretedPage;
+import com.caucho.quercus.parser.QuercusParser;
+import com.caucho.vfs.ReadStream;
+import com.caucho.vfs.StdoutStream;
+import com.caucho.vfs.StringPath;
+import com.caucho.vfs.WriteStream;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+/**
+ * Compares encoding PHP arrays to JSON by converting them to JsonObject and
+ * JsonArray first, as JSON.encode() used to, with encoding them in a single
+ * streaming pass, to a string and straight to a buffer.
+ *
+ * Encodes a document of a number of order records in each way and prints
+ * the encodes per second and the bytes allocated per encode:
+ *
+ * <pre>
+ * java -cp vertx-lang-php.jar:bench io.vertx.lang.php.bench.JsonEncodeBenchmark [records] [seconds]
+ * </pre>
+ */
+public class JsonEncodeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        QuercusContext context = new QuercusContext();
+        context.init();
+        context.start();
+        InterpretedPage page;
+        try (ReadStream reader = new StringPath("<?php\n").openRead()) {
+            page = new InterpretedPage(QuercusParser.parse(context, null, reader));
+        }
+        Env env = new Env(context, page, new WriteStream(StdoutStream.create()), null, null);
+        env.start();
+
+        Value document = document(env, records);
+        String converted = convertAndEncode(env, document);
+        String streamed = JSON.encode(env, document).toString();
+        if (!converted.equals(streamed)) {
+            System.err.println("The encodings differ:\n" + converted + "\n" + streamed);
+        }
+        System.out.println(records + " records, " + streamed.length() + " characters");
+
+        System.out.println("encoder\tencodes/s\tbytes/encode");
+        run("convert", seconds, () -> convertAndEncode(env, document));
+        run("stream", seconds, () -> JSON.encode(env, document));
+        run("buffer", seconds, () -> JSON.encodeToBuffer(env, document));
+
+        env.close();
+    }
+
+    /**
+     * Builds a list of order records with nested objects and lists.
+     */
+    private static Value document(Env env, int records) {
+        ArrayValue orders = new ArrayValueImpl();
+        for (int i = 0; i < records; i++) {
+            ArrayValue customer = new ArrayValueImpl();
+            customer.put(env.createString("id"), LongValue.create(1000 + i));
+            customer.put(env.createString("name"), env.createString("Customer " + i));
+            customer.put(env.createString("email"), env.createString("customer" + i + "@example.com"));
+
+            ArrayValue tags = new ArrayValueImpl();
+            for (int j = 0; j < 4; j++) {
+                tags.put(env.createString("tag" + ((i + j) % 10)));
+            }
+
+            ArrayValue order = new ArrayValueImpl();
+            order.put(env.createString("id"), LongValue.create(i));
+            order.put(env.createString("status"), env.createString(i % 3 == 0 ? "shipped" : "pending"));
+            order.put(env.createString("total"), DoubleValue.create(i * 1.25));
+            order.put(env.createString("quantity"), env.createString(String.valueOf(i % 5 + 1)));
+            order.put(env.createString("customer"), customer);
+            order.put(env.createString("tags"), tags);
+            orders.put(order);
+        }
+        ArrayValue document = new ArrayValueImpl();
+        document.put(env.createString("count"), LongValue.create(records));
+        document.put(env.createString("orders"), orders);
+        return document;
+    }
+
+    /**
+     * Encodes an array as JSON.encode() did before encoding in one pass.
+     */
+    private static String convertAndEncode(Env env, Value array) {
+        Value[] keys = ((ArrayValue) array).keysToArray();
+        boolean isAssoc = false;
+        for (int i = 0; i < keys.length; i++) {
+            if (!keys[i].toString().equals(String.valueOf(i))) {
+                isAssoc = true;
+                break;
+            }
+        }
+        return isAssoc ? PhpTypes.arrayToJsonObject(env, array).toString()
+            : PhpTypes.arrayToJsonArray(env, array).toString();
+    }
+
+    private static void run(String name, int seconds, Supplier<Object> encoder) {
+        // Warm up the JIT before measuring.
+        long warmUpEnd = System.nanoTime() + seconds * 500_000_000L;
+        while (System.nanoTime() < warmUpEnd) {
+            encoder.get();
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long count = 0;
+        while (System.nanoTime() < end) {
+            encoder.get();
+            count++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.printf("%s\t%.0f\t%s%n", name, count / elapsed,
+            allocatedBefore < 0 ? "n/a" : String.valueOf(allocated / count));
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 when
+     * the JVM does not measure it
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
@@ -40,23 +40,34 @@ public class AsyncResultHandler<T> extends Handler<AsyncResult<T>> {
     super(env, handler, modifier);
   }
 
-  public void handle(AsyncResult<T> result) {
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void invoke(AsyncResult<T> result) {
     Env env = getEnvironment();
-    if (hasModifier()) {
+    if (hasModifier() && getModifier() instanceof AsyncResultWrapper) {
+      // Wrap the result alone rather than allocating a wrapping AsyncResult.
+      if (result.succeeded()) {
+        getCallable().call(env, toValue(((AsyncResultWrapper<T, ?>) getModifier()).wrap(result.result())), toValue(null));
+      }
+      else {
+        getCallable().call(env, toValue(null), toValue(result.cause()));
+      }
+    }
+    else if (hasModifier()) {
       AsyncResult<?> wrapped = (AsyncResult<?>) getModifier().modify(result);
       if (wrapped.succeeded()) {
-        getCallable().call(env, env.wrapJava(wrapped.result()), env.wrapJava(null));
+        getCallable().call(env, toValue(wrapped.result()), toValue(null));
       }
       else {
-        getCallable().call(env, env.wrapJava(null), env.wrapJava(wrapped.cause()));
+        getCallable().call(env, toValue(null), toValue(wrapped.cause()));
       }
     }
     else {
       if (result.succeeded()) {
-        getCallable().call(env, env.wrapJava(result.result()), env.wrapJava(null));
+        getCallable().call(env, toValue(result.result()), toValue(null));
       }
       else {
-        getCallable().call(env, env.wrapJava(null), env.wrapJava(result.cause()));
+        getCallable().call(env, toValue(null), toValue(result.cause()));
       }
     }
   }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import com.caucho.quercus.QuercusLanguageException;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.function.AbstractFunction;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.lang.php.util.PhpTypes;
+
+/**
+ * Function to await an asynchronous result in php, exposed as await().
+ *
+ * Accepts a Vertx\Promise, a Vert.x future, or a callable that is called with a result
+ * handler to pass on to an asynchronous Vert.x method:
+ *
+ * <pre>
+ * $contents = await(function($done) use ($fs) {
+ *   $fs->readFile('data.json', $done);
+ * });
+ * </pre>
+ *
+ * Returns the result, or throws an exception if the operation failed: the
+ * PHP exception it failed with, or an Exception whose cause property holds
+ * the Java exception.
+ * Only available to handlers of verticles running in await mode.
+ */
+public class AwaitFunc extends AbstractFunction {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Value call(Env env, Value[] args) {
+        AwaitScheduler scheduler = AwaitScheduler.get(env);
+        if (scheduler == null || !scheduler.isCurrentThread()) {
+            env.error(PhpTypes.buildErrorMessage(env, "await() can only be called from a handler of a verticle in await mode."));
+            return env.wrapJava(null);
+        }
+        if (args.length != 1) {
+            throw new IllegalArgumentException("await: missing Argument future");
+        }
+
+        Future<Object> future = toFuture(env, args[0]);
+        try {
+            return env.wrapJava(scheduler.await(future));
+        } catch (QuercusLanguageException e) {
+            // A PHP exception, thrown on as it is.
+            throw e;
+        } catch (Throwable t) {
+            Value exception = env.createException("Exception", String.valueOf(t.getMessage()));
+            exception.putField(env, env.createString("cause"), env.wrapJava(t));
+            throw new QuercusLanguageException(exception);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Future<Object> toFuture(Env env, Value value) {
+        Object object = value.toJavaObject();
+        if (object instanceof Promise) {
+            return ((Promise) object).toFuture();
+        }
+        if (object instanceof Future) {
+            return (Future<Object>) object;
+        }
+
+        PhpTypes.assertCallable(env, value);
+        final Future<Object> future = Future.future();
+        io.vertx.core.Handler<AsyncResult<Object>> done = result -> {
+            if (result.succeeded()) {
+                future.complete(result.result());
+            }
+            else {
+                future.fail(result.cause());
+            }
+        };
+        PhpTypes.toCallable(env, value).call(env, env.wrapJava(done));
+        return future;
+    }
+
+    @Override
+    public String getName() {
+        return "await";
+    }
+}
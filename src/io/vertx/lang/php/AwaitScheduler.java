@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import com.caucho.quercus.env.Env;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxException;
+import io.vertx.lang.php.util.Futures;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the PHP event handlers of a verticle on their own threads so they
+ * can await futures with straight-line code.
+ *
+ * Each handler runs on a virtual thread when the JVM supports them, and on
+ * a thread of a bounded pool otherwise, 256 threads by default. Once every
+ * pooled thread is parked in await(), new events wait for a handler to
+ * finish, so handlers should not await events that other handlers in await
+ * mode are yet to handle. Handlers of a verticle share a single
+ * environment, so only one of them runs PHP code at a time: a handler
+ * holds the verticle's baton while it runs and hands it over while it
+ * awaits a future, letting other handlers of the verticle proceed.
+ *
+ * The baton is passed in order: events start in the order they arrived,
+ * and awaiting handlers resume in the order their futures completed, each
+ * queued behind the events that arrived before. Handler threads are not
+ * Vert.x threads, so code that needs the verticle's context looks it up
+ * with currentContext() and runs context bound calls on it.
+ */
+public class AwaitScheduler {
+
+  /**
+   * The Env special value holding the scheduler of a verticle.
+   */
+  public static final String KEY = "vertx.await";
+
+  /**
+   * The default size of the thread pool used without virtual threads.
+   */
+  public static final int DEFAULT_MAX_THREADS = 256;
+
+  private static final ExecutorService threads = createExecutor();
+
+  private static final ThreadLocal<AwaitScheduler> current = new ThreadLocal<>();
+
+  private final Context context;
+
+  /**
+   * The steps waiting for the baton, each starting or resuming a handler.
+   */
+  private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+  /**
+   * Whether a handler holds the baton, guarded by the queue.
+   */
+  private boolean busy;
+
+  public AwaitScheduler(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * Returns the scheduler of an environment, or null if the verticle does
+   * not run in await mode.
+   */
+  public static AwaitScheduler get(Env env) {
+    Object scheduler = env.getSpecialValue(KEY);
+    return scheduler instanceof AwaitScheduler ? (AwaitScheduler) scheduler : null;
+  }
+
+  /**
+   * Returns the context of the verticle whose handler runs on the current
+   * thread, or the current Vert.x context otherwise.
+   */
+  public static Context currentContext() {
+    AwaitScheduler scheduler = current.get();
+    return scheduler != null ? scheduler.context : Vertx.currentContext();
+  }
+
+  /**
+   * Makes the scheduler run the handlers created in an environment.
+   */
+  public void install(Env env) {
+    env.setSpecialValue(KEY, this);
+  }
+
+  public Context getContext() {
+    return context;
+  }
+
+  /**
+   * Indicates whether the current thread runs a handler of this scheduler.
+   */
+  public boolean isCurrentThread() {
+    return current.get() == this;
+  }
+
+  /**
+   * Runs a task on its own thread once it holds the baton, after the tasks
+   * executed before. Exceptions are reported to the verticle's context.
+   */
+  public void execute(Runnable task) {
+    schedule(() -> threads.execute(() -> {
+      current.set(this);
+      try {
+        task.run();
+      } catch (Throwable t) {
+        context.runOnContext(v -> {
+          throw t instanceof RuntimeException ? (RuntimeException) t : new VertxException(t);
+        });
+      } finally {
+        current.remove();
+        release();
+      }
+    }));
+  }
+
+  /**
+   * Runs a task on the current thread once it holds the baton.
+   */
+  public void run(Runnable task) {
+    acquire();
+    try {
+      task.run();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Parks the current handler until the future completes, letting other
+   * handlers of the verticle run meanwhile.
+   *
+   * @return the result of the future
+   * @throws Throwable the cause of the future's failure
+   */
+  public <T> T await(Future<T> future) throws Throwable {
+    if (!isCurrentThread()) {
+      throw new IllegalStateException("await() can only be called from a PHP handler in await mode");
+    }
+
+    if (!future.isComplete()) {
+      CountDownLatch latch = new CountDownLatch(1);
+      // Resume once the future completes and the handlers queued before are done.
+      Futures.onComplete(future, result -> schedule(latch::countDown));
+      release();
+      awaitUninterruptibly(latch);
+    }
+
+    if (future.failed()) {
+      throw future.cause();
+    }
+    return future.result();
+  }
+
+  /**
+   * Takes the baton, waiting for the steps queued before.
+   */
+  private void acquire() {
+    CountDownLatch latch = new CountDownLatch(1);
+    schedule(latch::countDown);
+    awaitUninterruptibly(latch);
+  }
+
+  /**
+   * Runs a step holding the baton, now if it is free and after the steps
+   * queued before otherwise.
+   */
+  private void schedule(Runnable step) {
+    synchronized (waiting) {
+      if (busy) {
+        waiting.add(step);
+        return;
+      }
+      busy = true;
+    }
+    step.run();
+  }
+
+  /**
+   * Hands the baton to the next step, if any.
+   */
+  private void release() {
+    Runnable next;
+    synchronized (waiting) {
+      next = waiting.poll();
+      if (next == null) {
+        busy = false;
+        return;
+      }
+    }
+    next.run();
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Sets how many threads run handlers on JVMs without virtual threads.
+   */
+  public static void setMaxThreads(int maxThreads) {
+    if (threads instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) threads;
+      if (maxThreads > pool.getMaximumPoolSize()) {
+        pool.setMaximumPoolSize(maxThreads);
+        pool.setCorePoolSize(maxThreads);
+      }
+      else {
+        pool.setCorePoolSize(maxThreads);
+        pool.setMaximumPoolSize(maxThreads);
+      }
+    }
+  }
+
+  /**
+   * @return whether handlers run on virtual threads
+   */
+  public static boolean isVirtual() {
+    return !(threads instanceof ThreadPoolExecutor);
+  }
+
+  /**
+   * Creates a virtual thread per task executor on JVMs that have them, and
+   * a bounded pool whose idle threads end otherwise.
+   */
+  private static ExecutorService createExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      final AtomicInteger count = new AtomicInteger();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS,
+          60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "vertx-php-await-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    }
+  }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import io.vertx.core.Context;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+
+/**
+ * A Vert.x handler that collects events and passes them to a PHP
+ * callable in batches, calling it once with an array of events rather
+ * than once per event.
+ *
+ * A batch is delivered once it holds the maximum number of events, or
+ * when the maximum delay has passed since its first event. When a source
+ * stream is given, the batch collected so far is delivered when it ends.
+ * Batches are delivered on the context, which holds the source back until
+ * the callable returns, except in await mode where the callable runs on
+ * its own thread: the source is then paused until the callable has
+ * returned, and resumed only if the handler paused it.
+ */
+public class BatchHandler<T> implements io.vertx.core.Handler<T> {
+
+  private final Context context;
+
+  private final ContextDispatcher dispatcher;
+
+  private final int maxItems;
+
+  private final long maxDelayMillis;
+
+  private final ReadStream<?> source;
+
+  private final Handler<List<T>> delivery;
+
+  /**
+   * The number of batches whose callable has not returned yet.
+   */
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * Whether the handler paused the source. Read off the context by a
+   * callable returning in await mode.
+   */
+  private volatile boolean paused;
+
+  private List<T> batch;
+
+  private long timerId = -1;
+
+  /**
+   * @param env A Quercus environment.
+   * @param handler The PHP callable receiving each batch.
+   * @param context The context events are delivered on.
+   * @param maxItems The maximum number of events in a batch.
+   * @param maxDelayMicros How long the first event of a batch may wait for
+   *   more, in microseconds. Vert.x timers have millisecond resolution, so
+   *   the delay is rounded up to whole milliseconds, and 0 delivers the
+   *   batch once the current event loop task is done.
+   * @param source The stream to pause while a batch is delivered, or null.
+   * @param endHandler The PHP callable to call once the source ended and
+   *   its last batch was delivered, or null.
+   */
+  public BatchHandler(Env env, Callable handler, Context context, int maxItems, long maxDelayMicros,
+      ReadStream<?> source, Callable endHandler) {
+    this.context = context;
+    this.dispatcher = ContextDispatcher.forContext(context);
+    this.maxItems = Math.max(1, maxItems);
+    this.maxDelayMillis = (maxDelayMicros + 999) / 1000;
+    this.source = source;
+    this.delivery = new Handler<List<T>>(env, handler) {
+      @Override
+      protected void invoke(List<T> events) {
+        try {
+          ArrayValue array = new ArrayValueImpl();
+          for (T event : events) {
+            array.put(toValue(event));
+          }
+          getCallable().call(getEnvironment(), array);
+        } finally {
+          // Only a source held back for a callable running on another thread
+          // needs resuming; flush() resumes it itself if this ran first.
+          if (inFlight.decrementAndGet() == 0 && paused) {
+            BatchHandler.this.context.runOnContext(v -> resume());
+          }
+        }
+      }
+    };
+    if (source != null) {
+      final Handler<Void> end = endHandler != null ? new Handler<>(env, endHandler) : null;
+      source.endHandler(v -> dispatcher.execute(() -> {
+        flush();
+        if (end != null) {
+          end.handle(null);
+        }
+      }));
+    }
+  }
+
+  @Override
+  public void handle(T event) {
+    if (dispatcher.isOnContext()) {
+      collect(event);
+    }
+    else {
+      // The batch is only touched on the context.
+      dispatcher.enqueue(() -> collect(event));
+    }
+  }
+
+  private void collect(T event) {
+    if (batch == null) {
+      batch = new ArrayList<>(Math.min(maxItems, 64));
+      schedule();
+    }
+    batch.add(event);
+    if (batch.size() >= maxItems) {
+      flush();
+    }
+  }
+
+  /**
+   * Delivers the events collected so far.
+   */
+  public void flush() {
+    if (timerId != -1) {
+      context.owner().cancelTimer(timerId);
+      timerId = -1;
+    }
+    List<T> events = batch;
+    batch = null;
+    if (events == null || events.isEmpty()) {
+      return;
+    }
+    inFlight.incrementAndGet();
+    delivery.handle(events);
+    if (source != null && !paused && inFlight.get() > 0) {
+      // The callable runs on another thread, hold the source back until it returns.
+      source.pause();
+      paused = true;
+      if (inFlight.get() == 0) {
+        resume();
+      }
+    }
+  }
+
+  private void resume() {
+    if (paused && inFlight.get() == 0) {
+      paused = false;
+      source.resume();
+    }
+  }
+
+  private void schedule() {
+    final List<T> scheduled = batch;
+    if (maxDelayMillis == 0) {
+      context.runOnContext(v -> {
+        if (batch == scheduled) {
+          flush();
+        }
+      });
+    }
+    else {
+      timerId = context.owner().setTimer(maxDelayMillis, id -> {
+        timerId = -1;
+        if (batch == scheduled) {
+          flush();
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the maximum delay of a batch in the given unit
+   */
+  public long getMaxDelay(TimeUnit unit) {
+    return unit.convert(maxDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public int getMaxItems() {
+    return maxItems;
+  }
+
+  public String toString() {
+    return "php:Vertx\\BatchHandler";
+  }
+
+}
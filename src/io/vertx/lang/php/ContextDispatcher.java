@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxException;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs PHP callbacks on the Vert.x context that owns their environment.
+ *
+ * Quercus environments are not thread safe, so events raised on other
+ * threads, such as worker pools or other verticles' contexts, are queued
+ * and run on the owning context. The queue is lock free and drained in
+ * batches, so a burst of foreign events costs one runOnContext() per
+ * batch rather than one per event.
+ *
+ * The dispatcher is kept in the local data of its context, so it goes away
+ * with the context. Callbacks run directly on the thread of an event loop
+ * context, on the thread currently running a worker context, whose tasks
+ * run one at a time, or while the dispatcher drains its queue. Events on
+ * multi-threaded worker contexts are always queued, since their tasks run
+ * concurrently. Worker contexts run ordered executeBlocking() code after
+ * their other tasks as well, so unordered blocking code of a worker verticle
+ * must not raise events handled by PHP.
+ */
+public class ContextDispatcher {
+
+  /**
+   * The maximum number of tasks run per context task, so a busy queue does
+   * not starve the context's other work.
+   */
+  private static final int BATCH_SIZE = 256;
+
+  /**
+   * The key of the dispatcher in the local data of its context.
+   */
+  private static final String KEY = ContextDispatcher.class.getName();
+
+  /**
+   * The dispatcher draining its queue on the current thread.
+   */
+  private static final ThreadLocal<ContextDispatcher> draining = new ThreadLocal<>();
+
+  private final Context context;
+
+  /**
+   * The thread of an event loop context, null until known and for other
+   * contexts.
+   */
+  private volatile Thread owner;
+
+  /**
+   * Whether the context is a worker context running one task at a time,
+   * on whichever worker thread is free.
+   */
+  private final boolean worker;
+
+  private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  private ContextDispatcher(Context context) {
+    this.context = context;
+    this.worker = context.isWorkerContext() && !context.isMultiThreadedWorkerContext();
+  }
+
+  /**
+   * Returns the dispatcher of a context.
+   */
+  public static ContextDispatcher forContext(Context context) {
+    ContextDispatcher dispatcher;
+    synchronized (context) {
+      dispatcher = context.get(KEY);
+      if (dispatcher == null) {
+        dispatcher = new ContextDispatcher(context);
+        context.put(KEY, dispatcher);
+      }
+    }
+    if (dispatcher.owner == null && Context.isOnEventLoopThread() && Vertx.currentContext() == context) {
+      dispatcher.owner = Thread.currentThread();
+    }
+    return dispatcher;
+  }
+
+  /**
+   * Returns the dispatcher of the current context, or null when not
+   * called from a context.
+   */
+  public static ContextDispatcher current() {
+    Context context = AwaitScheduler.currentContext();
+    return context != null ? forContext(context) : null;
+  }
+
+  public Context getContext() {
+    return context;
+  }
+
+  /**
+   * Indicates whether the current thread runs the dispatcher's context.
+   */
+  public boolean isOnContext() {
+    Thread thread = owner;
+    if (thread != null) {
+      return thread == Thread.currentThread();
+    }
+    return draining.get() == this || (worker && Vertx.currentContext() == context);
+  }
+
+  /**
+   * Runs a task now when on the context, and queues it otherwise.
+   */
+  public void execute(Runnable task) {
+    if (isOnContext()) {
+      task.run();
+    }
+    else {
+      enqueue(task);
+    }
+  }
+
+  /**
+   * Queues a task to run on the context.
+   */
+  public void enqueue(Runnable task) {
+    queue.offer(task);
+    schedule();
+  }
+
+  /**
+   * @return the number of tasks waiting to run
+   */
+  public int getPending() {
+    return queue.size();
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      context.runOnContext(v -> drain());
+    }
+  }
+
+  private void drain() {
+    if (owner == null && context.isEventLoopContext()) {
+      owner = Thread.currentThread();
+    }
+    ContextDispatcher previous = draining.get();
+    draining.set(this);
+    try {
+      drainBatch();
+    } finally {
+      draining.set(previous);
+    }
+    scheduled.set(false);
+    if (!queue.isEmpty()) {
+      schedule();
+    }
+  }
+
+  private void drainBatch() {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      Runnable task = queue.poll();
+      if (task == null) {
+        break;
+      }
+      try {
+        task.run();
+      } catch (Throwable t) {
+        // Report the failure without dropping the rest of the batch.
+        context.runOnContext(v -> {
+          throw t instanceof RuntimeException ? (RuntimeException) t : new VertxException(t);
+        });
+      }
+    }
+  }
+
+}
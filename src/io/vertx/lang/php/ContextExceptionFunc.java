@@ -34,8 +34,10 @@ public class ContextExceptionFunc extends AbstractFunction {
     @Override
     public Value call(Env env, Value[] values) {
         Callable errorHandler = values[0].toCallable(env, false);
+        ContextDispatcher dispatcher = ContextDispatcher.forContext(context);
         context.exceptionHandler(throwable -> {
-            errorHandler.call(env, env.createException("com.caucho.quercus.QuercusRuntimeException", throwable.getMessage()));
+            // Exceptions may be reported on the thread that raised them.
+            dispatcher.execute(() -> errorHandler.call(env, env.createException("com.caucho.quercus.QuercusRuntimeException", throwable.getMessage())));
         });
         return NullValue.NULL;
     }
@@ -15,8 +15,13 @@
  */
 package io.vertx.lang.php;
 
+import io.vertx.lang.php.metrics.EnvTracker;
+import io.vertx.lang.php.metrics.HandlerMetrics;
+import io.vertx.lang.php.util.ValueConverters;
+
 import com.caucho.quercus.env.Callable;
 import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.Value;
 
 /**
  * An implementation of the Vert.x Handler that invokes PHP
@@ -43,15 +48,42 @@ public class Handler<T> implements io.vertx.core.Handler<T> {
    */
   private ResultModifier<T, ?> modifier;
 
+  /**
+   * The scheduler running the handler when the verticle is in await mode.
+   */
+  private AwaitScheduler scheduler;
+
+  /**
+   * The metrics of the PHP callback, looked up on first use.
+   */
+  private HandlerMetrics.Stats stats;
+
+  /**
+   * The converters turning events into PHP values.
+   */
+  private ValueConverters converters;
+
+  /**
+   * The dispatcher of the context the handler was created on, which owns
+   * the environment.
+   */
+  private ContextDispatcher dispatcher;
+
   public Handler(Env env, Callable handler) {
     this.env = env;
     this.handler = handler;
+    this.scheduler = AwaitScheduler.get(env);
+    this.converters = ValueConverters.forEnv(env);
+    this.dispatcher = ContextDispatcher.current();
   }
 
   public Handler(Env env, Callable handler, ResultModifier<T, ?> modifier) {
     this.env = env;
     this.handler = handler;
     this.modifier = modifier;
+    this.scheduler = AwaitScheduler.get(env);
+    this.converters = ValueConverters.forEnv(env);
+    this.dispatcher = ContextDispatcher.current();
   }
 
   protected Env getEnvironment() {
@@ -70,12 +102,80 @@ public class Handler<T> implements io.vertx.core.Handler<T> {
     return modifier;
   }
 
+  /**
+   * Converts an event or result to a PHP value.
+   */
+  protected Value toValue(Object object) {
+    return converters.toValue(env, object);
+  }
+
   public void handle(T arg) {
+    if (scheduler != null) {
+      // The scheduler serializes handlers of the environment itself.
+      if (scheduler.isCurrentThread()) {
+        dispatch(arg);
+      }
+      else {
+        scheduler.execute(() -> dispatch(arg));
+      }
+    }
+    else if (dispatcher != null && !dispatcher.isOnContext()) {
+      // Events raised on other threads run on the environment's context.
+      dispatcher.enqueue(() -> dispatch(arg));
+    }
+    else {
+      dispatch(arg);
+    }
+  }
+
+  /**
+   * Invokes the callback, tracking it for the PHP monitors and recording
+   * its latency when handler metrics are enabled.
+   */
+  private void dispatch(T arg) {
+    EnvTracker.Slot slot = EnvTracker.enter(env);
+    try {
+      if (HandlerMetrics.isEnabled()) {
+        invokeMeasured(arg);
+      }
+      else {
+        invoke(arg);
+      }
+    }
+    finally {
+      if (slot != null) {
+        slot.exit();
+      }
+    }
+  }
+
+  private void invokeMeasured(T arg) {
+    if (stats == null) {
+      stats = HandlerMetrics.forCallable(env, handler);
+    }
+    long start = System.nanoTime();
+    try {
+      invoke(arg);
+    }
+    catch (RuntimeException | Error e) {
+      stats.error();
+      throw e;
+    }
+    finally {
+      stats.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Calls the PHP callback with the event. Subclasses override this
+   * rather than handle() to change how the callback is called.
+   */
+  protected void invoke(T arg) {
     if (modifier != null) {
-      handler.call(env, env.wrapJava(modifier.modify(arg)));
+      handler.call(env, toValue(modifier.modify(arg)));
     }
     else {
-      handler.call(env, env.wrapJava(arg));
+      handler.call(env, toValue(arg));
     }
   }
 
@@ -1,26 +1,60 @@
 package io.vertx.lang.php;
 
+import io.vertx.lang.php.metrics.BlockedLoopWatchdog;
+import io.vertx.lang.php.metrics.EnvTracker;
+import io.vertx.lang.php.metrics.HandlerMetrics;
+import io.vertx.lang.php.metrics.Profiler;
+import io.vertx.lang.php.metrics.StartupTimings;
+import io.vertx.lang.php.streams.impl.BufferedStdoutStream;
 import io.vertx.lang.php.streams.impl.InstantWriteStream;
+import io.vertx.lang.php.streams.impl.RedirectStream;
+import io.vertx.lang.php.util.Blocking;
+import io.vertx.lang.php.util.JsonDecoder;
+import io.vertx.lang.php.util.Output;
 
 import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.ArrayValue;
 import com.caucho.quercus.env.Env;
-import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.QuercusClass;
 import com.caucho.quercus.env.Value;
 import com.caucho.quercus.function.AbstractFunction;
 import com.caucho.quercus.page.InterpretedPage;
 import com.caucho.quercus.page.QuercusPage;
 import com.caucho.quercus.parser.QuercusParser;
+import com.caucho.quercus.program.ClassDef;
+import com.caucho.quercus.program.InterpretedClassDef;
+import com.caucho.quercus.program.Function;
 import com.caucho.quercus.program.QuercusProgram;
+import com.caucho.vfs.Path;
 import com.caucho.vfs.ReadStream;
 import com.caucho.vfs.StdoutStream;
+import com.caucho.vfs.StreamImpl;
 import com.caucho.vfs.StringPath;
+import com.caucho.vfs.Vfs;
 import com.caucho.vfs.WriteStream;
+import io.netty.util.concurrent.EventExecutor;
 import io.vertx.core.*;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.impl.VertxInternal;
 import io.vertx.core.spi.VerticleFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -32,24 +66,503 @@ import java.net.URL;
  */
 public class PhpVerticleFactory implements VerticleFactory {
 
-    private ClassLoader cl;
+    private static final Logger log = LoggerFactory.getLogger(PhpVerticleFactory.class);
+
+    /**
+     * The class loader the shared context was created with.
+     */
+    private volatile ClassLoader cl;
 
     public Vertx vertx;
 
-    public QuercusContext context = null;
+    public volatile QuercusContext context = null;
+
+    /**
+     * How long a failed attempt to create the shared context is remembered
+     * before creating it is attempted again.
+     */
+    private static final long CONTEXT_RETRY_MILLIS = 5000;
+
+    /**
+     * When creating the shared context last failed, 0 if it has not.
+     */
+    private volatile long contextFailedAt = 0;
+
+    /**
+     * Whether verticle scripts and their includes are compiled to JVM bytecode pages.
+     */
+    private boolean compile = false;
+
+    /**
+     * Whether pages are interpreted until their compiled version is ready.
+     */
+    private boolean lazyCompile = false;
+
+    /**
+     * Directory for compiled pages that persist across JVM restarts.
+     */
+    private String cacheDir;
+
+    /**
+     * Library scripts whose functions and classes are defined once per context.
+     */
+    private final List<String> preloads = new CopyOnWriteArrayList<>();
+
+    /**
+     * The classes declared by the preloaded scripts of each context.
+     */
+    private final Map<QuercusContext, List<ClassDef>> preloadedClasses = new ConcurrentHashMap<>();
+
+    /**
+     * Index of the Vertx namespace classes on the classpath, built once.
+     */
+    private volatile VertxClassMap classMap;
+
+    /**
+     * Size of the stdout buffer of each verticle, 0 to write through.
+     */
+    private int stdoutBufferSize = 0;
+
+    private long stdoutFlushInterval = 100;
+
+    private BufferedStdoutStream.OverflowPolicy stdoutOverflowPolicy = BufferedStdoutStream.OverflowPolicy.DROP;
+
+    /**
+     * Size of the worker pool running Vertx\Util\Blocking calls.
+     */
+    private int blockingPoolSize = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Whether PHP handlers run on their own threads and may call await().
+     */
+    private boolean awaitMode = false;
+
+    /**
+     * How long a PHP callback may block an event loop before it is reported, 0 to not watch.
+     */
+    private long blockedLoopThreshold = 0;
+
+    private String blockedLoopAddress;
+
+    private BlockedLoopWatchdog blockedLoopWatchdog;
+
+    /**
+     * The event bus address controlling the profiler, null for none.
+     */
+    private String profilerAddress;
+
+    private MessageConsumer<Object> profilerConsumer;
+
+    /**
+     * Whether each event loop thread gets its own Quercus context.
+     */
+    private boolean contextPerEventLoop = false;
+
+    /**
+     * The contexts of each event loop thread when running a context per event loop.
+     */
+    private final ConcurrentHashMap<Thread, QuercusContext> eventLoopContexts = new ConcurrentHashMap<>();
+
+    /**
+     * Contexts built ahead of time that no event loop has claimed yet.
+     */
+    private final ConcurrentLinkedQueue<QuercusContext> spareContexts = new ConcurrentLinkedQueue<>();
+
+    private boolean eventLoopContextsPrepared = false;
+
+    /**
+     * How many per event loop contexts are still being built.
+     */
+    private final AtomicInteger pendingEventLoopContexts = new AtomicInteger();
+
+    /**
+     * How many verticles on an event loop ran in the shared context because
+     * no context of their own was ready.
+     */
+    private final AtomicLong sharedContextFallbacks = new AtomicLong();
+
+    /**
+     * Whether the startup phases of each verticle are timed and reported.
+     */
+    private boolean startupTimings = false;
+
+    private String startupTimingsAddress;
+
+    /**
+     * How long each phase of setting up a context took.
+     */
+    private final Map<QuercusContext, StartupTimings> contextTimings = new ConcurrentHashMap<>();
+
+    private int jsonMaxDepth = JsonDecoder.DEFAULT_MAX_DEPTH;
+
+    private int jsonMaxSize = JsonDecoder.DEFAULT_MAX_SIZE;
 
     public PhpVerticleFactory(String prefix) {
 
     }
 
+    /**
+     * Enables compiling PHP verticles and the scripts they include into JVM
+     * bytecode pages instead of running them through the Quercus interpreter.
+     * Pages that fail to compile fall back to interpretation. Must be set
+     * before the first verticle is created.
+     */
+    public PhpVerticleFactory setCompile(boolean compile) {
+        this.compile = compile;
+        return this;
+    }
+
+    public boolean isCompile() {
+        return compile;
+    }
+
+    /**
+     * When compiling, interprets pages until their compiled version is ready
+     * rather than compiling them before the first execution.
+     */
+    public PhpVerticleFactory setLazyCompile(boolean lazyCompile) {
+        this.lazyCompile = lazyCompile;
+        return this;
+    }
+
+    public boolean isLazyCompile() {
+        return lazyCompile;
+    }
+
+    /**
+     * Sets a directory where compiled pages are kept across JVM restarts.
+     * Pages are stored below a sub directory named after the Quercus version,
+     * so an upgrade never loads stale pages, and a page is only reused while
+     * its source is unchanged. Only has an effect when compiling is enabled.
+     */
+    public PhpVerticleFactory setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+        return this;
+    }
+
+    public String getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * Adds a library script to preload, like PHP's opcache.preload. The
+     * script is parsed once when a context is created; its functions are
+     * defined in the context and its classes are handed to every verticle,
+     * so verticles no longer require it themselves. Only declarations are
+     * loaded, top level statements of the script are not executed. Must be
+     * set before the first verticle is created.
+     */
+    public PhpVerticleFactory addPreload(String script) {
+        preloads.add(script);
+        return this;
+    }
+
+    public List<String> getPreloads() {
+        return Collections.unmodifiableList(preloads);
+    }
+
+    /**
+     * Buffers the output of PHP verticles in memory instead of writing it to
+     * stdout on every echo. The buffer is written out on a background thread
+     * when half full, after the flush interval and when the verticle stops.
+     *
+     * @param bufferSize The buffer size in bytes per verticle, 0 to write every echo through.
+     * @param flushIntervalMillis The longest time output stays buffered.
+     */
+    public PhpVerticleFactory setStdoutBuffer(int bufferSize, long flushIntervalMillis) {
+        this.stdoutBufferSize = bufferSize;
+        this.stdoutFlushInterval = flushIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Sets what happens to output when the stdout buffer is full, either
+     * waiting for stdout or dropping the output. Defaults to dropping;
+     * output written on an event loop is dropped rather than waited for
+     * with either policy.
+     */
+    public PhpVerticleFactory setStdoutOverflowPolicy(BufferedStdoutStream.OverflowPolicy policy) {
+        this.stdoutOverflowPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Sets the size of the worker pool running Vertx\Util\Blocking calls,
+     * the number of processors by default. The pool is shared by the PHP
+     * verticles of a Vert.x instance and closed when the last of them
+     * stops, a new size applies once it is created again.
+     */
+    public PhpVerticleFactory setBlockingPoolSize(int size) {
+        this.blockingPoolSize = size;
+        return this;
+    }
+
+    public int getBlockingPoolSize() {
+        return blockingPoolSize;
+    }
+
+    /**
+     * Sets the limits of the documents json_decode() accepts in the contexts
+     * of this factory, see {@link JsonDecoder}. Applies to contexts created
+     * afterwards, so set it before registering the factory.
+     *
+     * @param maxDepth How deep arrays and objects may be nested, 512 by default.
+     * @param maxSize The maximum length of decoded input in characters, 64M by default.
+     */
+    public PhpVerticleFactory setJsonDecodeLimits(int maxDepth, int maxSize) {
+        this.jsonMaxDepth = maxDepth;
+        this.jsonMaxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Runs each PHP event handler of a verticle on its own thread, a virtual
+     * thread where the JVM supports them, so handlers can call await() to
+     * wait for a Vert.x future with straight-line code. Handlers of one
+     * verticle never run PHP code at the same time, but may interleave
+     * while awaiting. Handlers run on these threads, not on the verticle's
+     * context; Vertx\Util classes that need the context use the verticle's.
+     */
+    public PhpVerticleFactory setAwaitMode(boolean awaitMode) {
+        this.awaitMode = awaitMode;
+        return this;
+    }
+
+    public boolean isAwaitMode() {
+        return awaitMode;
+    }
+
+    /**
+     * Sets how many handlers in await mode may run or await at once on JVMs
+     * without virtual threads, each taking a platform thread. Events beyond
+     * that wait for a handler to finish.
+     */
+    public PhpVerticleFactory setAwaitThreads(int threads) {
+        AwaitScheduler.setMaxThreads(threads);
+        return this;
+    }
+
+    /**
+     * Records latency histograms and invocation and error counts for every
+     * PHP callback invoked by a Vert.x handler, see {@link HandlerMetrics}.
+     */
+    public PhpVerticleFactory setHandlerMetrics(boolean enabled) {
+        HandlerMetrics.setEnabled(enabled);
+        return this;
+    }
+
+    /**
+     * Reports PHP callbacks that block an event loop for longer than the
+     * threshold with their PHP call stack, in the log and on the event bus.
+     *
+     * @param thresholdMillis How long a callback may run, 0 to stop watching.
+     * @param address The event bus address to publish reports to, or null to only log them.
+     */
+    public synchronized PhpVerticleFactory setBlockedLoopWatchdog(long thresholdMillis, String address) {
+        this.blockedLoopThreshold = thresholdMillis;
+        this.blockedLoopAddress = address;
+        if (vertx != null) {
+            startBlockedLoopWatchdog();
+        }
+        return this;
+    }
+
+    private synchronized void startBlockedLoopWatchdog() {
+        if (blockedLoopWatchdog != null) {
+            blockedLoopWatchdog.close();
+            blockedLoopWatchdog = null;
+        }
+        if (blockedLoopThreshold > 0) {
+            blockedLoopWatchdog = new BlockedLoopWatchdog(vertx, blockedLoopThreshold, blockedLoopAddress);
+        }
+    }
+
+    /**
+     * Lets the PHP profiler be controlled over the event bus. Messages sent
+     * to the address are either a string action or a JSON object with an
+     * "action" and an optional sampling "rate":
+     * "start" starts sampling and replies whether it was started, "stop"
+     * stops sampling and "dump" leaves it running, both reply with the
+     * samples in collapsed stack format.
+     *
+     * @param address The address to listen on, or null to stop listening.
+     */
+    public synchronized PhpVerticleFactory setProfilerAddress(String address) {
+        this.profilerAddress = address;
+        if (vertx != null) {
+            registerProfilerConsumer();
+        }
+        return this;
+    }
+
+    private synchronized void registerProfilerConsumer() {
+        if (profilerConsumer != null) {
+            profilerConsumer.unregister();
+            profilerConsumer = null;
+        }
+        if (profilerAddress == null) {
+            return;
+        }
+        profilerConsumer = vertx.eventBus().consumer(profilerAddress, message -> {
+            String action;
+            int rate = 0;
+            if (message.body() instanceof JsonObject) {
+                JsonObject body = (JsonObject) message.body();
+                action = body.getString("action", "");
+                rate = body.getInteger("rate", 0);
+            }
+            else {
+                action = String.valueOf(message.body());
+            }
+
+            switch (action) {
+                case "start":
+                    message.reply(Profiler.start(rate));
+                    break;
+                case "stop":
+                    message.reply(Profiler.stop());
+                    break;
+                case "dump":
+                    message.reply(Profiler.dump());
+                    break;
+                default:
+                    message.fail(400, String.format("Unknown profiler action '%s'", action));
+            }
+        });
+    }
+
+    /**
+     * Gives each event loop thread its own Quercus context, so verticles on
+     * different event loops no longer contend on the class, function and page
+     * caches of a single shared context. Verticles are bound to the context of
+     * the event loop they are started on; worker verticles keep using the
+     * shared context.
+     *
+     * The contexts are built on worker threads when the factory is
+     * initialized, one per event loop of the Vert.x instance. An event loop
+     * that finds no context ready yet uses the shared context, which is
+     * logged and counted by getSharedContextFallbacks(); deploy once
+     * isEventLoopContextsReady() to avoid it.
+     */
+    public synchronized PhpVerticleFactory setContextPerEventLoop(boolean contextPerEventLoop) {
+        this.contextPerEventLoop = contextPerEventLoop;
+        if (vertx != null && contextPerEventLoop) {
+            prepareEventLoopContexts(cl != null ? cl : getClass().getClassLoader());
+        }
+        return this;
+    }
+
+    public boolean isContextPerEventLoop() {
+        return contextPerEventLoop;
+    }
+
+    /**
+     * @return whether every per event loop context has been built, or failed to
+     */
+    public synchronized boolean isEventLoopContextsReady() {
+        return eventLoopContextsPrepared && pendingEventLoopContexts.get() == 0;
+    }
+
+    /**
+     * @return how many verticles on an event loop ran in the shared context
+     * because no context of their own was ready
+     */
+    public long getSharedContextFallbacks() {
+        return sharedContextFallbacks.get();
+    }
+
+    /**
+     * Times the phases of starting each PHP verticle and reports them once it
+     * has started, as an info log line and, when an address is set, as a JSON
+     * message published on the event bus:
+     *
+     * <pre>
+     * {"verticle": "/app/server.php",
+     *  "phases": {"findScript": 0.4, "parse": 12.1, "wrapper": 0.1, "envCreate": 0.2, "envStart": 0.1, "execute": 3.5, "total": 16.3},
+     *  "context": {"create": 40.2, "addJavaClass": 8.7, "start": 25.0, "functions": 30.1, "preload": 0.0, "total": 104.0}}
+     * </pre>
+     *
+     * Times are in milliseconds. "parse" is loading the page of the verticle
+     * script, "wrapper" parsing the one line program that includes it and
+     * "execute" running it. The context phases are those of setting up the
+     * Quercus context the verticle runs in.
+     *
+     * @param enabled Whether to time verticle startup.
+     * @param address The event bus address to publish timings to, or null to only log them.
+     */
+    public PhpVerticleFactory setStartupTimings(boolean enabled, String address) {
+        this.startupTimings = enabled;
+        this.startupTimingsAddress = address;
+        return this;
+    }
+
+    public boolean isStartupTimings() {
+        return startupTimings;
+    }
+
+    /**
+     * @return how long each phase of setting up a context took
+     */
+    public StartupTimings getContextTimings(QuercusContext quercusContext) {
+        return contextTimings.get(quercusContext);
+    }
+
     @Override
     public boolean blockingCreate() {
-        return true;
+        // Verticles are created without waiting for the shared context. One
+        // started before the context is ready waits for it on a worker thread.
+        return false;
     }
 
     @Override
     public void init(Vertx vertx) {
         this.vertx = vertx;
+        startBlockedLoopWatchdog();
+        registerProfilerConsumer();
+
+        // Build the context up front, off the registering thread, so the
+        // first deployment does not pay for it. Verticles started meanwhile
+        // wait for it in PhpVerticle.start().
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        final ClassLoader classLoader = loader != null ? loader : getClass().getClassLoader();
+        vertx.<Void>executeBlocking(future -> {
+            initQuercusContext(classLoader);
+            future.complete();
+        }, false, result -> {});
+        if (contextPerEventLoop) {
+            prepareEventLoopContexts(classLoader);
+        }
+    }
+
+    /**
+     * Builds the per event loop contexts on worker threads, once, one for each
+     * event loop of the Vert.x instance. Contexts that fail to build are left
+     * out and not attempted again.
+     */
+    private synchronized void prepareEventLoopContexts(final ClassLoader classLoader) {
+        if (eventLoopContextsPrepared) {
+            return;
+        }
+        int eventLoops = 0;
+        for (EventExecutor ignored : ((VertxInternal) vertx).getEventLoopGroup()) {
+            eventLoops++;
+        }
+        pendingEventLoopContexts.set(eventLoops);
+        eventLoopContextsPrepared = true;
+        for (int i = 0; i < eventLoops; i++) {
+            vertx.<Void>executeBlocking(future -> {
+                try {
+                    QuercusContext quercusContext = createQuercusContext(classLoader);
+                    if (quercusContext != null) {
+                        spareContexts.offer(quercusContext);
+                    }
+                }
+                finally {
+                    pendingEventLoopContexts.decrementAndGet();
+                }
+                future.complete();
+            }, false, result -> {});
+        }
     }
 
     @Override
@@ -59,22 +572,22 @@ public class PhpVerticleFactory implements VerticleFactory {
 
     @Override
     public Verticle createVerticle(String verticleName, ClassLoader classLoader) throws Exception {
-        this.cl = classLoader;
-        if (context == null) {
-            this.initQuercusContext();
+        StartupTimings timings = startupTimings ? new StartupTimings() : null;
+        String scriptPath = findScript(verticleName, classLoader);
+        if (timings != null) {
+            timings.lap("findScript");
         }
-        String scriptPath = findScript(verticleName);
         if (scriptPath == null) {
             throw new VertxException(String.format("%s is not a valid PHP verticle.", verticleName));
         }
-        return new PhpVerticle(context, scriptPath);
+        return new PhpVerticle(context, scriptPath, classLoader, timings);
     }
 
     /**
      * Finds the full path to a PHP script.
      */
-    private String findScript(String script) {
-        URL filename = cl.getResource(script);
+    private String findScript(String script, ClassLoader classLoader) {
+        URL filename = classLoader.getResource(script);
         if (filename != null) {
             File scriptFile = new File(filename.getPath());
             if (scriptFile.exists()) {
@@ -93,80 +606,232 @@ public class PhpVerticleFactory implements VerticleFactory {
         return null;
     }
 
-    protected void initQuercusContext() {
-        if (context != null) {
-            return;
+    /**
+     * Loads the page of a script ahead of its first execution, so it is
+     * parsed or compiled, or a page compiled by an earlier run is picked up
+     * from the cache directory, before the verticle runs it. Errors are left
+     * for the verticle to report when it runs the script.
+     */
+    private void loadPage(QuercusContext quercusContext, String scriptPath) {
+        try {
+            quercusContext.parse(Vfs.lookup(scriptPath));
+        } catch (Exception e) {
+            // Reported by the verticle on start.
         }
+    }
+
+    protected QuercusContext initQuercusContext() {
+        return initQuercusContext(getClass().getClassLoader());
+    }
 
+    /**
+     * Creates the context shared by the verticles of this factory unless it
+     * already exists. Safe to call from several threads at once. A failed
+     * attempt is remembered for a few seconds rather than repeated for every
+     * verticle, and attempted again after that.
+     *
+     * @return the shared context, or null if the PHP environment failed to load
+     */
+    protected QuercusContext initQuercusContext(ClassLoader classLoader) {
+        QuercusContext quercusContext = context;
+        if (quercusContext != null || failedRecently()) {
+            return quercusContext;
+        }
+
+        synchronized (this) {
+            if (context == null && !failedRecently()) {
+                cl = classLoader;
+                context = createQuercusContext(classLoader);
+                contextFailedAt = context == null ? System.currentTimeMillis() : 0;
+            }
+            return context;
+        }
+    }
+
+    private boolean failedRecently() {
+        long failedAt = contextFailedAt;
+        return failedAt != 0 && System.currentTimeMillis() - failedAt < CONTEXT_RETRY_MILLIS;
+    }
+
+    /**
+     * Creates and starts a new Quercus context with the vertx-php classes
+     * and functions registered.
+     *
+     * @return the context, or null if the PHP environment failed to load
+     */
+    protected QuercusContext createQuercusContext(ClassLoader classLoader) {
         ClassLoader old = Thread.currentThread().getContextClassLoader();
         try {
-            Thread.currentThread().setContextClassLoader(cl);
+            Thread.currentThread().setContextClassLoader(classLoader);
 
-            context = new QuercusContext();
+            StartupTimings timings = new StartupTimings();
+            QuercusContext context = new QuercusContext();
             // Setting PHP's error_reporting to 0 makes Quercus give us more
             // interesting exception messages and thus better error reporting.
             context.setIni("error_reporting", "0");
 
+            if (jsonMaxDepth != JsonDecoder.DEFAULT_MAX_DEPTH || jsonMaxSize != JsonDecoder.DEFAULT_MAX_SIZE) {
+                JsonDecoder.setLimits(context, jsonMaxDepth, jsonMaxSize);
+            }
+
             //enable utf-8
             context.setUnicodeSemantics(true);
 
+            // Included scripts are loaded through the page manager, which
+            // compiles them when enabled and interprets any page it fails to compile.
+            context.setCompile(compile);
+            context.setLazyCompile(compile && lazyCompile);
+            context.setCompileFailover(true);
+
+            if (cacheDir != null) {
+                String version = context.getVersion().replaceAll("[^A-Za-z0-9._-]", "_");
+                context.setWorkDir(Vfs.lookup(cacheDir).lookup("quercus-" + version));
+            }
+            timings.lap("create");
+
             // Make vertx-php classes available in the PHP code context.
             context.addJavaClass("Vertx\\Buffer", io.vertx.lang.php.buffer.Buffer.class);
+            context.addJavaClass("Vertx\\Promise", io.vertx.lang.php.Promise.class);
+            context.addJavaClass("Vertx\\JsonObjectView", io.vertx.lang.php.json.JsonObjectView.class);
+            context.addJavaClass("Vertx\\JsonArrayView", io.vertx.lang.php.json.JsonArrayView.class);
             context.addJavaClass("Vertx\\Logger", io.vertx.core.logging.Logger.class);
             context.addJavaClass("Vertx\\ReadStream", io.vertx.lang.php.streams.ReadStream.class);
             context.addJavaClass("Vertx\\WriteStream", io.vertx.lang.php.streams.WriteStream.class);
 
             context.addJavaClass("Vertx\\Util\\HandlerFactory", io.vertx.lang.php.util.HandlerFactory.class);
+            context.addJavaClass("Vertx\\Util\\Output", io.vertx.lang.php.util.Output.class);
+            context.addJavaClass("Vertx\\Util\\Blocking", io.vertx.lang.php.util.Blocking.class);
+            context.addJavaClass("Vertx\\Util\\HandlerMetrics", io.vertx.lang.php.metrics.HandlerMetrics.class);
+            context.addJavaClass("Vertx\\Util\\Profiler", io.vertx.lang.php.metrics.Profiler.class);
+            timings.lap("addJavaClass");
 
             context.init();
             context.start();
+            timings.lap("start");
+
+            if (classMap == null) {
+                classMap = VertxClassMap.scan(classLoader);
+            }
+            addRequireVertxToContext(context);
+            timings.lap("functions");
 
-            addRequireVertxToContext();
+            preloadScripts(context, classLoader);
+            timings.lap("preload");
 
             AbstractFunction func = context.findFunction(context.createString("phpinfo"));
 
             if (func == null) {
-                context = null;
                 throw new VertxException("PHP Environment didn't load properly");
             }
+            contextTimings.put(context, timings);
+            return context;
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Failed to create the PHP environment", e);
         } finally {
             Thread.currentThread().setContextClassLoader(old);
         }
+        return null;
     }
 
-    private void addRequireVertxToContext() {
-        context.setFunction(context.createString("require_vertx"), new AbstractFunction() {
+    /**
+     * Parses the preloaded scripts, defining their functions in the context
+     * and keeping their classes for the verticles of the context.
+     */
+    private void preloadScripts(QuercusContext context, ClassLoader classLoader) throws IOException {
+        List<ClassDef> classes = new ArrayList<>();
+        for (String script : preloads) {
+            String scriptPath = findScript(script, classLoader);
+            if (scriptPath == null) {
+                throw new VertxException(String.format("%s is not a valid PHP script to preload.", script));
+            }
 
-            private static final long serialVersionUID = 5350698219672910902L;
+            Path path = Vfs.lookup(scriptPath);
+            QuercusProgram program;
+            try (ReadStream reader = path.openRead()) {
+                program = QuercusParser.parse(context, path, reader);
+            }
 
-            @Override
-            public Value call(Env env, Value[] args) {
-                if (args.length != 1) {
-                    throw new IllegalArgumentException("require_vertx: missing Argument path");
-                }
+            for (Function function : program.getFunctionList()) {
+                context.setFunction(context.createString(function.getName()), function);
+            }
+            classes.addAll(program.getClassList());
+        }
+        preloadedClasses.put(context, classes);
+    }
 
-                String resourceName = args[0].toString();
-                URL resourcePath = cl.getResource(args[0].toString());
-                try {
-                    String script = String.format("require('%s');", resourcePath.toString());
-                    QuercusProgram program = context.parseCode(context.createString(script));
-                    program.execute(env);
-                } catch (NullPointerException np) {
-                    System.out.println(String.format("Could not find Vertx resource '%s''", resourceName));
-                    np.printStackTrace();
-                }
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
-                catch (Exception err) {
-                    err.printStackTrace();
-                }
+    private void addRequireVertxToContext(final QuercusContext context) {
+        RequireVertxFunc requireOnce = new RequireVertxFunc(this, context, true);
+        context.setFunction(context.createString("require_vertx"), new RequireVertxFunc(this, context, false));
+        context.setFunction(context.createString("require_vertx_once"), requireOnce);
+        context.setFunction(context.createString("vertx_autoload"), new VertxAutoloadFunc(classMap, requireOnce));
+        context.setFunction(context.createString("await"), new AwaitFunc());
+    }
+
+    /**
+     * Creates the stream PHP output of a verticle is written to.
+     */
+    private StreamImpl createStdout() {
+        if (stdoutBufferSize > 0) {
+            return BufferedStdoutStream.create(stdoutBufferSize, stdoutFlushInterval, stdoutOverflowPolicy);
+        }
+        return StdoutStream.create();
+    }
 
-                return NullValue.create();
+    /**
+     * Returns the context of the current event loop thread, claiming one of
+     * the contexts built ahead of time on first use. Never builds a context,
+     * so it does not block the event loop; falls back to the given context
+     * when none is ready, logging the first time it does.
+     */
+    private QuercusContext getEventLoopContext(QuercusContext fallback) {
+        Thread thread = Thread.currentThread();
+        QuercusContext quercusContext = eventLoopContexts.get(thread);
+        if (quercusContext == null) {
+            QuercusContext spare = spareContexts.poll();
+            if (spare == null) {
+                if (sharedContextFallbacks.incrementAndGet() == 1) {
+                    log.warn("No PHP context of its own was ready for " + thread.getName()
+                        + ", running in the shared context. Deploy once isEventLoopContextsReady() to avoid it.");
+                }
+                return fallback;
             }
-        });
+            QuercusContext existing = eventLoopContexts.putIfAbsent(thread, spare);
+            if (existing != null) {
+                spareContexts.offer(spare);
+                quercusContext = existing;
+            }
+            else {
+                quercusContext = spare;
+            }
+        }
+        return quercusContext;
+    }
+
+    /**
+     * @return the per event loop contexts created so far
+     */
+    public Collection<QuercusContext> getEventLoopContexts() {
+        return Collections.unmodifiableCollection(eventLoopContexts.values());
+    }
+
+    /**
+     * Looks up a resource with the class loader of the running deployment,
+     * falling back to the one the context was created with.
+     */
+    URL getResource(String name) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        URL url = loader != null ? loader.getResource(name) : null;
+        if (url == null && cl != null) {
+            url = cl.getResource(name);
+        }
+        return url;
+    }
+
+    /**
+     * @return the index of Vertx namespace classes used by the autoloader
+     */
+    public VertxClassMap getClassMap() {
+        return classMap;
     }
 
     /**
@@ -179,22 +844,58 @@ public class PhpVerticleFactory implements VerticleFactory {
     /**
      * A PHP Verticle that runs PHP scripts via Quercus.
      */
-    private class PhpVerticle extends AbstractVerticle {
+    private class PhpVerticle extends AbstractVerticle implements Blocking.Owner {
 
         /**
          * The path to the verticle PHP script.
          */
         private final String scriptName;
 
-        private final QuercusContext querContext;
+        private QuercusContext querContext;
+
+        /**
+         * The class loader of the deployment, to build the shared context with.
+         */
+        private final ClassLoader classLoader;
 
         private WriteStream out;
 
         private Env globalEnv;
 
-        PhpVerticle(QuercusContext querContext, String script) {
+        /**
+         * The page of the wrapper script the environments are created with.
+         */
+        private QuercusPage page;
+
+        /**
+         * The functions the verticle script declared, taken once it ran and
+         * shared with the environments of blocking code. Null while the
+         * verticle is not running.
+         */
+        private volatile Map<String, AbstractFunction> declaredFunctions;
+
+        /**
+         * The classes the verticle script declared.
+         */
+        private volatile Map<String, ClassDef> declaredClasses;
+
+        /**
+         * The worker pool of blocking code, created on first use.
+         */
+        private WorkerExecutor executor;
+
+        private boolean stopped;
+
+        /**
+         * The startup timings of this verticle, null when not timed.
+         */
+        private final StartupTimings timings;
+
+        PhpVerticle(QuercusContext querContext, String script, ClassLoader classLoader, StartupTimings timings) {
             this.scriptName = script;
             this.querContext = querContext;
+            this.classLoader = classLoader;
+            this.timings = timings;
         }
 
         public Vertx getVertx() {
@@ -223,54 +924,274 @@ public class PhpVerticleFactory implements VerticleFactory {
 //                     httpServerRequest.response().w
 //                }
 //            })      ;
-//            String classLoaderScript = "spl_autoload_register(function($class) {" +
-//                "if(substr($class, 0, 5)==='Vertx'){require_vertx(str_replace('\\\\', '/', $class) . '.php');}" +
-//                "});";
+            if (querContext != null) {
+                prepare(var1);
+                return;
+            }
 
+            // The shared context is still being built, wait for it off the event loop.
+            this.vertx.<QuercusContext>executeBlocking(future -> future.complete(initQuercusContext(classLoader)), false, result -> {
+                if (result.failed() || result.result() == null) {
+                    var1.fail(new VertxException("PHP Environment didn't load properly"));
+                    return;
+                }
+                querContext = result.result();
+                prepare(var1);
+            });
+        }
+
+        /**
+         * Picks the context the verticle runs in and loads its page.
+         */
+        private void prepare(Future<Void> var1) {
+            if (contextPerEventLoop && Context.isOnEventLoopThread()) {
+                querContext = getEventLoopContext(querContext);
+            }
+            if (timings != null) {
+                timings.mark();
+            }
+
+            if (compile || cacheDir != null) {
+                // Compiling or loading a compiled page may take a while, do it
+                // off the event loop, in the context the verticle runs in.
+                this.vertx.<Void>executeBlocking(future -> {
+                    long start = System.nanoTime();
+                    loadPage(querContext, this.scriptName);
+                    if (timings != null) {
+                        timings.record("parse", System.nanoTime() - start);
+                    }
+                    future.complete();
+                }, false, result -> {
+                    if (result.failed()) {
+                        var1.fail(result.cause());
+                        return;
+                    }
+                    if (timings != null) {
+                        timings.mark();
+                    }
+                    run(var1);
+                });
+            }
+            else {
+                if (timings != null) {
+                    // Parse the page now rather than when the wrapper requires
+                    // it, to time it apart from executing the script.
+                    loadPage(querContext, this.scriptName);
+                    timings.lap("parse");
+                }
+                run(var1);
+            }
+        }
+
+        /**
+         * Runs the verticle script in a new environment.
+         */
+        private void run(Future<Void> var1) {
             // Evaluate a single line script which includes the verticle
             // script. This ensures that exceptions can be accurately logged
             // because Quercus will record actual file names rather than a
-            // generic "eval" name.
-//            String script = String.format("<?php " + classLoaderScript + "require '%s'; ?>", this.scriptName);
-            String script = String.format("<?php require '%s'; ?>", this.scriptName);
+            // generic "eval" name. Classes of the Vertx namespace are loaded
+            // on first use from the class map built by the factory. The
+            // script itself is parsed once per context and kept until it
+            // changes by the page manager of the context.
+            String script = String.format("<?php spl_autoload_register('vertx_autoload'); require '%s'; ?>", this.scriptName);
 
-            try (ReadStream reader = (new StringPath(script)).openRead()) {
-                try {
-                    QuercusProgram program = QuercusParser.parse(querContext, null, reader);
-                    QuercusPage page = new InterpretedPage(program);
+            QuercusProgram program;
+            try {
+                try (ReadStream reader = (new StringPath(script)).openRead()) {
+                    program = QuercusParser.parse(querContext, null, reader);
+                }
+                if (timings != null) {
+                    timings.lap("wrapper");
+                }
+            } catch (IOException e) {
+                var1.fail(new VertxException("Cannot parse PHP verticle: " + this.scriptName));
+                return;
+            } catch (Exception e) {
+                var1.fail(e);
+                return;
+            }
 
-                    out = new InstantWriteStream(StdoutStream.create());
-                    globalEnv = new Env(querContext, page, out, null, null);
+            try {
+                page = new InterpretedPage(program);
 
-                    AbstractFunction abstFunc = new AbstFunc(this.vertx);
-                    globalEnv.addFunction("getVertx", abstFunc);
+                RedirectStream output = new RedirectStream(createStdout());
+                out = new InstantWriteStream(output);
+                globalEnv = new Env(querContext, page, out, null, null);
+                globalEnv.setSpecialValue(Output.STREAM, output);
+                if (timings != null) {
+                    timings.lap("envCreate");
+                }
 
-                    AbstractFunction vertFunc = new VerticleFunc(this);
-                    globalEnv.addFunction("verticle", vertFunc);
+                addVerticleDefinitions(globalEnv);
 
-                    AbstractFunction contextExceptionFunc = new ContextExceptionFunc(this.context);
-                    globalEnv.addFunction("contextException", contextExceptionFunc);
+                AwaitScheduler scheduler = null;
+                if (awaitMode) {
+                    scheduler = new AwaitScheduler(this.context);
+                    scheduler.install(globalEnv);
+                }
 
-                    globalEnv.start();
+                globalEnv.start();
+                if (timings != null) {
+                    timings.lap("envStart");
+                }
 
-                    program.execute(globalEnv);
-                    out.flush();
-                    var1.complete();
-                } catch (Exception e) {
-                    System.out.println("Exception caught when parsed this php file");
-                    var1.fail(e);
+                EnvTracker.Slot slot = EnvTracker.enter(globalEnv);
+                try {
+                    if (scheduler != null) {
+                        // Handlers registered by the script wait until it is done.
+                        scheduler.run(() -> program.execute(globalEnv));
+                    }
+                    else {
+                        program.execute(globalEnv);
+                    }
+                } finally {
+                    if (slot != null) {
+                        slot.exit();
+                    }
                 }
-            } catch (IOException e) {
-                var1.fail(new VertxException("Cannot parse PHP verticle: " + this.scriptName));
+                out.flush();
+                snapshotDeclarations();
+                if (timings != null) {
+                    timings.lap("execute");
+                    reportStartup();
+                }
+                var1.complete();
             } catch (Exception e) {
+                System.out.println("Exception caught when parsed this php file");
                 var1.fail(e);
             }
 
         }
 
+        /**
+         * Adds the functions and classes every environment of the verticle has.
+         */
+        private void addVerticleDefinitions(Env env) {
+            AbstractFunction abstFunc = new AbstFunc(this.vertx);
+            env.addFunction("getVertx", abstFunc);
+
+            AbstractFunction vertFunc = new VerticleFunc(this);
+            env.addFunction("verticle", vertFunc);
+
+            AbstractFunction contextExceptionFunc = new ContextExceptionFunc(this.context);
+            env.addFunction("contextException", contextExceptionFunc);
+
+            List<ClassDef> classes = preloadedClasses.get(querContext);
+            if (classes != null) {
+                for (ClassDef classDef : classes) {
+                    env.addClass(classDef.getName(), classDef);
+                }
+            }
+
+            env.setSpecialValue(Blocking.OWNER, this);
+        }
+
+        /**
+         * Takes the functions and classes the verticle script declared, on
+         * the verticle's context once the script ran, for the environments
+         * of blocking code.
+         */
+        private void snapshotDeclarations() {
+            Map<String, AbstractFunction> functions = new HashMap<>();
+            Value names = globalEnv.getDefinedFunctions().get(globalEnv.createString("user"));
+            if (names instanceof ArrayValue) {
+                for (Value name : ((ArrayValue) names).valuesToArray()) {
+                    AbstractFunction function = globalEnv.findFunction(name.toStringValue(globalEnv));
+                    if (function != null) {
+                        functions.put(name.toString(), function);
+                    }
+                }
+            }
+            Map<String, ClassDef> classes = new HashMap<>();
+            names = globalEnv.getDeclaredClasses();
+            if (names instanceof ArrayValue) {
+                for (Value name : ((ArrayValue) names).valuesToArray()) {
+                    QuercusClass declared = globalEnv.findClass(name.toString());
+                    if (declared != null && declared.getClassDef() instanceof InterpretedClassDef) {
+                        classes.put(name.toString(), declared.getClassDef());
+                    }
+                }
+            }
+            declaredClasses = classes;
+            declaredFunctions = functions;
+        }
+
+        @Override
+        public synchronized WorkerExecutor getExecutor() {
+            if (executor == null && !stopped) {
+                executor = this.vertx.createSharedWorkerExecutor(Blocking.POOL_NAME, blockingPoolSize);
+            }
+            return executor;
+        }
+
+        /**
+         * Creates an environment for blocking code of the verticle. It has
+         * the functions and classes the verticle script declared when it
+         * ran, but not its globals, and writes its output straight to stdout.
+         */
+        @Override
+        public Env create() {
+            Map<String, AbstractFunction> functions = declaredFunctions;
+            Map<String, ClassDef> classes = declaredClasses;
+            if (functions == null || classes == null) {
+                return null;
+            }
+
+            RedirectStream output = new RedirectStream(StdoutStream.create());
+            Env env = new Env(querContext, page, new InstantWriteStream(output), null, null);
+            env.setSpecialValue(Output.STREAM, output);
+            addVerticleDefinitions(env);
+            for (Map.Entry<String, AbstractFunction> function : functions.entrySet()) {
+                env.addFunction(function.getKey(), function.getValue());
+            }
+            for (Map.Entry<String, ClassDef> classDef : classes.entrySet()) {
+                env.addClass(classDef.getKey(), classDef.getValue());
+            }
+            return env;
+        }
+
+        /**
+         * Starts an environment for blocking code on its worker thread.
+         */
+        @Override
+        public void start(Env env) {
+            env.start();
+            AbstractFunction register = env.findFunction(env.createString("spl_autoload_register"));
+            if (register != null) {
+                register.call(env, env.createString("vertx_autoload"));
+            }
+        }
+
+        /**
+         * Logs and publishes the startup timings of this verticle.
+         */
+        private void reportStartup() {
+            JsonObject event = new JsonObject()
+                .put("verticle", this.scriptName)
+                .put("phases", timings.toJson());
+            StartupTimings contextPhases = contextTimings.get(querContext);
+            if (contextPhases != null) {
+                event.put("context", contextPhases.toJson());
+            }
+            log.info("PHP verticle startup timings: " + event.encode());
+            if (startupTimingsAddress != null) {
+                this.vertx.eventBus().publish(startupTimingsAddress, event);
+            }
+        }
+
         @Override
         public void stop(Future<Void> var1) {
             globalEnv = null;
+            declaredFunctions = null;
+            declaredClasses = null;
+            synchronized (this) {
+                stopped = true;
+                if (executor != null) {
+                    executor.close();
+                    executor = null;
+                }
+            }
 
             if (out != null) {
                 try {
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxException;
+import io.vertx.lang.php.util.Futures;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.caucho.quercus.annotation.Optional;
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.Value;
+
+/**
+ * The eventual result of an asynchronous operation, exposed to PHP as
+ * Vertx\Promise.
+ *
+ * Promises are completed by Vert.x result handlers and chained and joined
+ * in Java, so only the continuations passed to then(), compose() and map()
+ * call into PHP:
+ *
+ * <pre>
+ * $a = new Vertx\Promise();
+ * $fs->readFile('a.json', $a->handler());
+ * $b = new Vertx\Promise();
+ * $fs->readFile('b.json', $b->handler());
+ *
+ * Vertx\Promise::all([$a, $b])->timeout(1000)->then(function($files) {
+ *   ...
+ * }, function($error) {
+ *   ...
+ * });
+ * </pre>
+ *
+ * A chain of map() calls whose promises nobody listened to yet is applied
+ * in a single call into PHP once the last one is listened to, which
+ * completes every promise of the chain with its own result.
+ */
+public class Promise {
+
+  /**
+   * The outcome, null while pending.
+   */
+  private AsyncResult<Object> outcome;
+
+  /**
+   * The listeners waiting for the outcome.
+   */
+  private List<io.vertx.core.Handler<AsyncResult<Object>>> listeners;
+
+  /**
+   * The promise a mapped promise maps, null otherwise.
+   */
+  private Promise parent;
+
+  private Env mapEnv;
+
+  private Callable mapper;
+
+  /**
+   * The handler applying the mapper, created with the promise on the
+   * caller's context.
+   */
+  private Mapping mapping;
+
+  /**
+   * Whether a mapped promise is mapped already, by itself or by a promise
+   * mapping it further.
+   */
+  private boolean subscribed;
+
+  public Promise() {
+  }
+
+  private Promise(Promise parent, Env env, Callable mapper) {
+    this.parent = parent;
+    this.mapEnv = env;
+    this.mapper = mapper;
+    this.mapping = new Mapping(env, mapper);
+  }
+
+  /**
+   * Creates a promise completed by a Vert.x future.
+   */
+  public static Promise of(Future<?> future) {
+    Promise promise = new Promise();
+    if (future.isComplete()) {
+      promise.complete(future.succeeded() ? Future.succeededFuture(future.result()) : Future.failedFuture(future.cause()));
+    }
+    else {
+      Futures.onComplete(future, result -> promise.complete(result.succeeded() ? Future.succeededFuture(result.result()) : Future.failedFuture(result.cause())));
+    }
+    return promise;
+  }
+
+  /**
+   * Creates a promise from a PHP value: promises are returned as is,
+   * Vert.x futures are adopted and other values are resolved promises.
+   */
+  public static Promise from(Value value) {
+    Object object = value.isObject() ? value.toJavaObject() : null;
+    if (object instanceof Promise) {
+      return (Promise) object;
+    }
+    if (object instanceof Future) {
+      return of((Future<?>) object);
+    }
+    Promise promise = new Promise();
+    promise.resolve(value);
+    return promise;
+  }
+
+  /**
+   * Creates a resolved promise.
+   */
+  public static Promise resolved(Value value) {
+    Promise promise = new Promise();
+    promise.resolve(value);
+    return promise;
+  }
+
+  /**
+   * Creates a rejected promise.
+   */
+  public static Promise rejected(Env env, Value error) {
+    Promise promise = new Promise();
+    promise.reject(env, error);
+    return promise;
+  }
+
+  /**
+   * Returns a promise resolved with an array of the results of all promises,
+   * in order, or rejected with the first failure.
+   */
+  public static Promise all(Env env, ArrayValue promises) {
+    final Promise result = new Promise();
+    final Value[] values = promises.valuesToArray();
+    final Object[] results = new Object[values.length];
+    if (values.length == 0) {
+      result.complete(Future.succeededFuture(results));
+      return result;
+    }
+
+    final AtomicInteger pending = new AtomicInteger(values.length);
+    for (int i = 0; i < values.length; i++) {
+      final int index = i;
+      from(values[i]).onComplete(outcome -> {
+        if (outcome.succeeded()) {
+          results[index] = outcome.result();
+          if (pending.decrementAndGet() == 0) {
+            result.complete(Future.succeededFuture(results));
+          }
+        }
+        else {
+          result.complete(outcome);
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Returns a promise resolved with the first result of any promise, or
+   * rejected with the last failure once all promises failed.
+   */
+  public static Promise any(Env env, ArrayValue promises) {
+    final Promise result = new Promise();
+    final Value[] values = promises.valuesToArray();
+    if (values.length == 0) {
+      result.complete(Future.failedFuture(new VertxException("No promises to wait for")));
+      return result;
+    }
+
+    final AtomicInteger pending = new AtomicInteger(values.length);
+    for (Value value : values) {
+      from(value).onComplete(outcome -> {
+        if (outcome.succeeded() || pending.decrementAndGet() == 0) {
+          result.complete(outcome);
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Returns a Vert.x result handler completing this promise, to pass to
+   * asynchronous Vert.x methods.
+   */
+  public io.vertx.core.Handler<AsyncResult<Object>> handler() {
+    return this::complete;
+  }
+
+  /**
+   * Resolves the promise with a value.
+   */
+  public void resolve(@Optional Value value) {
+    complete(Future.succeededFuture(value));
+  }
+
+  /**
+   * Rejects the promise with an exception or message.
+   */
+  public void reject(Env env, Value error) {
+    Object object = error.isObject() ? error.toJavaObject() : null;
+    if (object instanceof Throwable) {
+      complete(Future.failedFuture((Throwable) object));
+    }
+    else {
+      complete(Future.failedFuture(new VertxException(error.toString())));
+    }
+  }
+
+  /**
+   * Calls the success or failure callback with the outcome.
+   *
+   * The returned promise is resolved with the return value of the callback,
+   * or takes the outcome of the promise it returns. Failures are passed on
+   * when there is no failure callback, and exceptions thrown by the
+   * callbacks reject it.
+   */
+  public Promise then(Env env, Value onSuccess, @Optional Value onFailure) {
+    final Promise next = new Promise();
+    // Created here, on the caller's context, so the callbacks are dispatched
+    // to it whichever thread completes the promise.
+    final Continuation success = PhpTypes.isNull(onSuccess) ? null : new Continuation(env, PhpTypes.toCallable(env, onSuccess), next);
+    final Continuation failure = PhpTypes.isNull(onFailure) ? null : new Continuation(env, PhpTypes.toCallable(env, onFailure), next);
+    onComplete(outcome -> {
+      if (outcome.succeeded()) {
+        if (success != null) {
+          success.handle(outcome.result());
+        }
+        else {
+          next.complete(outcome);
+        }
+      }
+      else {
+        if (failure != null) {
+          failure.handle(outcome.cause());
+        }
+        else {
+          next.complete(outcome);
+        }
+      }
+    });
+    return next;
+  }
+
+  /**
+   * Calls the callable with the result, which returns the promise whose
+   * outcome the returned promise takes. Failures are passed on.
+   */
+  public Promise compose(Env env, Value callable) {
+    PhpTypes.assertCallable(env, callable);
+    return then(env, callable, null);
+  }
+
+  /**
+   * Returns a promise resolved with the result mapped by the callable.
+   * Failures are passed on.
+   */
+  public Promise map(Env env, Value callable) {
+    PhpTypes.assertCallable(env, callable);
+    return new Promise(this, env, PhpTypes.toCallable(env, callable));
+  }
+
+  /**
+   * Returns a promise rejected if this promise is not complete within the
+   * timeout.
+   */
+  public Promise timeout(Env env, long millis) {
+    Context context = AwaitScheduler.currentContext();
+    if (context == null) {
+      env.error(PhpTypes.buildErrorMessage(env, "Promise timeouts can only be set from a verticle."));
+      return this;
+    }
+
+    final Vertx vertx = context.owner();
+    final Promise next = new Promise();
+    Runnable start = () -> {
+      final long timerId = vertx.setTimer(millis, id ->
+          next.complete(Future.failedFuture(new VertxException(String.format("Timed out after %d ms", millis)))));
+      onComplete(outcome -> {
+        vertx.cancelTimer(timerId);
+        next.complete(outcome);
+      });
+    };
+    if (Vertx.currentContext() == context) {
+      start.run();
+    }
+    else {
+      // Set the timer on the verticle's context rather than an arbitrary event loop.
+      context.runOnContext(v -> start.run());
+    }
+    return next;
+  }
+
+  public synchronized boolean isComplete() {
+    return outcome != null;
+  }
+
+  /**
+   * Returns a Vert.x future completed with the outcome.
+   */
+  public Future<Object> toFuture() {
+    final Future<Object> future = Future.future();
+    onComplete(outcome -> {
+      if (outcome.succeeded()) {
+        future.complete(outcome.result());
+      }
+      else {
+        future.fail(outcome.cause());
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Calls the listener with the outcome once the promise is complete.
+   */
+  public void onComplete(io.vertx.core.Handler<AsyncResult<Object>> listener) {
+    AsyncResult<Object> result;
+    boolean subscribe = false;
+    synchronized (this) {
+      result = outcome;
+      if (result == null) {
+        if (listeners == null) {
+          listeners = new ArrayList<>(1);
+        }
+        listeners.add(listener);
+        if (parent != null && !subscribed) {
+          subscribed = true;
+          subscribe = true;
+        }
+      }
+    }
+    if (result != null) {
+      listener.handle(result);
+    }
+    else if (subscribe) {
+      subscribe();
+    }
+  }
+
+  /**
+   * Maps the outcome of the parent, along with the mapped ancestors nobody
+   * listened to yet, so every mapper of the chain runs once.
+   */
+  private void subscribe() {
+    List<Promise> chain = new ArrayList<>();
+    chain.add(this);
+    Promise source = parent;
+    while (source.claim(mapEnv)) {
+      chain.add(source);
+      source = source.parent;
+    }
+    Collections.reverse(chain);
+    final Mapping first = chain.get(0).mapping;
+    first.chain = chain;
+    source.onComplete(outcome -> {
+      if (outcome.succeeded()) {
+        first.handle(outcome.result());
+      }
+      else {
+        first.fail(0, outcome.cause());
+      }
+    });
+  }
+
+  /**
+   * Lets a promise mapping this one map it as well, unless it is mapped
+   * already or maps in another environment.
+   */
+  private synchronized boolean claim(Env env) {
+    if (parent == null || subscribed || outcome != null || mapEnv != env) {
+      return false;
+    }
+    subscribed = true;
+    return true;
+  }
+
+  /**
+   * Completes the promise, unless it is complete already.
+   */
+  void complete(AsyncResult<?> result) {
+    List<io.vertx.core.Handler<AsyncResult<Object>>> waiting;
+    synchronized (this) {
+      if (outcome != null) {
+        return;
+      }
+      outcome = result.succeeded() ? Future.succeededFuture(result.result()) : Future.failedFuture(result.cause());
+      waiting = listeners;
+      listeners = null;
+    }
+    if (waiting != null) {
+      for (io.vertx.core.Handler<AsyncResult<Object>> listener : waiting) {
+        listener.handle(outcome);
+      }
+    }
+  }
+
+  /**
+   * Completes the promise with the return value of a PHP callable.
+   */
+  private void settle(Value value) {
+    Object object = value != null && value.isObject() ? value.toJavaObject() : null;
+    if (object instanceof Promise) {
+      ((Promise) object).onComplete(this::complete);
+    }
+    else if (object instanceof Future) {
+      of((Future<?>) object).onComplete(this::complete);
+    }
+    else {
+      complete(Future.succeededFuture(value));
+    }
+  }
+
+  public String toString() {
+    return "php:Vertx\\Promise";
+  }
+
+  /**
+   * Calls a PHP continuation and settles the next promise with its result.
+   */
+  private static class Continuation extends Handler<Object> {
+
+    private final Promise next;
+
+    Continuation(Env env, Callable callable, Promise next) {
+      super(env, callable);
+      this.next = next;
+    }
+
+    @Override
+    protected void invoke(Object arg) {
+      Value value;
+      try {
+        value = getCallable().call(getEnvironment(), toValue(arg));
+      } catch (RuntimeException e) {
+        next.complete(Future.failedFuture(e));
+        return;
+      }
+      next.settle(value);
+    }
+  }
+
+  /**
+   * Applies the mappers of a chain of mapped promises in one call into PHP,
+   * completing each promise with the result of its mapper.
+   */
+  private static class Mapping extends Handler<Object> {
+
+    /**
+     * The promises to map, from the first one on, set when subscribing.
+     */
+    private List<Promise> chain;
+
+    Mapping(Env env, Callable mapper) {
+      super(env, mapper);
+    }
+
+    @Override
+    protected void invoke(Object arg) {
+      Value value = toValue(arg);
+      for (int i = 0; i < chain.size(); i++) {
+        Promise promise = chain.get(i);
+        try {
+          value = promise.mapper.call(getEnvironment(), value);
+        } catch (RuntimeException e) {
+          fail(i, e);
+          return;
+        }
+        promise.complete(Future.succeededFuture(value));
+      }
+    }
+
+    /**
+     * Fails the promises of the chain from the given one on.
+     */
+    private void fail(int from, Throwable cause) {
+      for (int i = from; i < chain.size(); i++) {
+        chain.get(i).complete(Future.failedFuture(cause));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.function.AbstractFunction;
+import com.caucho.quercus.program.QuercusProgram;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Function to require a PHP script from the Vert.x classpath, exposed as
+ * require_vertx and require_vertx_once. Resource lookups are cached per
+ * class loader of the deployment and the parsed require statement per
+ * resource, both bounded, so calling it from a handler does not parse
+ * again.
+ */
+public class RequireVertxFunc extends AbstractFunction {
+
+    private static final long serialVersionUID = 5350698219672910902L;
+
+    private static final Logger log = LoggerFactory.getLogger(RequireVertxFunc.class);
+
+    /**
+     * The maximum number of resources and programs cached.
+     */
+    public static final int CACHE_SIZE = 1024;
+
+    private final PhpVerticleFactory factory;
+
+    private final QuercusContext context;
+
+    private final boolean once;
+
+    /**
+     * The resources found through each class loader, which are dropped with it.
+     */
+    private final Map<ClassLoader, Map<String, URL>> resources = new WeakHashMap<>();
+
+    private final Map<String, QuercusProgram> programs = lruMap();
+
+    RequireVertxFunc(PhpVerticleFactory factory, QuercusContext context, boolean once) {
+        this.factory = factory;
+        this.context = context;
+        this.once = once;
+    }
+
+    @Override
+    public Value call(Env env, Value[] args) {
+        if (args.length != 1) {
+            throw new IllegalArgumentException(String.format("%s: missing Argument path", getName()));
+        }
+
+        String resourceName = args[0].toString();
+        URL resourcePath = getResource(resourceName);
+        if (resourcePath == null) {
+            env.warning(String.format("Could not find Vertx resource '%s'", resourceName));
+            return NullValue.create();
+        }
+
+        require(env, resourcePath);
+        return NullValue.create();
+    }
+
+    /**
+     * Requires the script at the given URL in the environment.
+     */
+    public void require(Env env, URL resourcePath) {
+        try {
+            getProgram(resourcePath).execute(env);
+        }
+        catch (Exception e) {
+            log.error(String.format("Failed to require Vertx resource '%s'", resourcePath), e);
+        }
+    }
+
+    /**
+     * Looks up a resource with the class loader of the running deployment.
+     */
+    private URL getResource(String resourceName) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        Map<String, URL> found;
+        synchronized (resources) {
+            found = resources.get(loader);
+            if (found == null) {
+                found = lruMap();
+                resources.put(loader, found);
+            }
+        }
+        synchronized (found) {
+            URL resourcePath = found.get(resourceName);
+            if (resourcePath == null) {
+                resourcePath = factory.getResource(resourceName);
+                if (resourcePath != null) {
+                    found.put(resourceName, resourcePath);
+                }
+            }
+            return resourcePath;
+        }
+    }
+
+    private QuercusProgram getProgram(URL resourcePath) throws IOException {
+        String key = resourcePath.toString();
+        QuercusProgram program;
+        synchronized (programs) {
+            program = programs.get(key);
+        }
+        if (program == null) {
+            String script = String.format(once ? "require_once('%s');" : "require('%s');", key);
+            program = context.parseCode(context.createString(script));
+            synchronized (programs) {
+                programs.put(key, program);
+            }
+        }
+        return program;
+    }
+
+    /**
+     * Creates a map dropping its least recently used entry beyond the cache size.
+     */
+    private static <K, V> Map<K, V> lruMap() {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return once ? "require_vertx_once" : "require_vertx";
+    }
+}
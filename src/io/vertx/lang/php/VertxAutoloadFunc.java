@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.function.AbstractFunction;
+
+import java.net.URL;
+
+/**
+ * Autoloader for the Vertx namespace, registered with spl_autoload_register.
+ * Classes are looked up in a prebuilt class map and required once on first use.
+ */
+public class VertxAutoloadFunc extends AbstractFunction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final VertxClassMap classMap;
+
+    private final RequireVertxFunc requireOnce;
+
+    VertxAutoloadFunc(VertxClassMap classMap, RequireVertxFunc requireOnce) {
+        this.classMap = classMap;
+        this.requireOnce = requireOnce;
+    }
+
+    @Override
+    public Value call(Env env, Value[] args) {
+        if (args.length == 1) {
+            URL resourcePath = classMap.find(args[0].toString());
+            if (resourcePath != null) {
+                requireOnce.require(env, resourcePath);
+            }
+        }
+        return NullValue.create();
+    }
+
+    @Override
+    public String getName() {
+        return "vertx_autoload";
+    }
+}
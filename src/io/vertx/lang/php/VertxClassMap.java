@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * An index of the PHP classes of the Vertx namespace on the classpath.
+ *
+ * The classpath is scanned once for Vertx/**.php resources, each mapped to
+ * the class named after its path, e.g. Vertx/Http/Server.php declares
+ * Vertx\Http\Server. Lookups are case insensitive like PHP class names.
+ */
+public class VertxClassMap {
+
+    private static final String NAMESPACE = "Vertx";
+
+    private static final String EXTENSION = ".php";
+
+    private final Map<String, URL> classes;
+
+    private VertxClassMap(Map<String, URL> classes) {
+        this.classes = Collections.unmodifiableMap(classes);
+    }
+
+    /**
+     * Scans the classpath of a class loader for Vertx namespace classes.
+     */
+    public static VertxClassMap scan(ClassLoader classLoader) {
+        Map<String, URL> classes = new HashMap<>();
+        try {
+            Enumeration<URL> roots = classLoader.getResources(NAMESPACE);
+            while (roots.hasMoreElements()) {
+                URL root = roots.nextElement();
+                if ("file".equals(root.getProtocol())) {
+                    scanDirectory(new File(root.toURI()), NAMESPACE, classes);
+                }
+                else if ("jar".equals(root.getProtocol())) {
+                    scanJar(root, classes);
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            e.printStackTrace();
+        }
+        return new VertxClassMap(classes);
+    }
+
+    private static void scanDirectory(File dir, String className, Map<String, URL> classes) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                scanDirectory(file, className + "\\" + name, classes);
+            }
+            else if (name.endsWith(EXTENSION)) {
+                String key = className + "\\" + name.substring(0, name.length() - EXTENSION.length());
+                classes.putIfAbsent(key.toLowerCase(Locale.ENGLISH), file.toURI().toURL());
+            }
+        }
+    }
+
+    private static void scanJar(URL root, Map<String, URL> classes) throws IOException {
+        URLConnection connection = root.openConnection();
+        if (!(connection instanceof JarURLConnection)) {
+            return;
+        }
+        JarURLConnection jarConnection = (JarURLConnection) connection;
+        String jarUrl = jarConnection.getJarFileURL().toString();
+        JarFile jar = jarConnection.getJarFile();
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.startsWith(NAMESPACE + "/") && name.endsWith(EXTENSION)) {
+                String key = name.substring(0, name.length() - EXTENSION.length()).replace('/', '\\');
+                classes.putIfAbsent(key.toLowerCase(Locale.ENGLISH), new URL("jar:" + jarUrl + "!/" + name));
+            }
+        }
+    }
+
+    /**
+     * Returns the script declaring a class, or null if the class is not indexed.
+     */
+    public URL find(String className) {
+        if (className.startsWith("\\")) {
+            className = className.substring(1);
+        }
+        return classes.get(className.toLowerCase(Locale.ENGLISH));
+    }
+
+    public int size() {
+        return classes.size();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.json;
+
+import io.vertx.core.json.JsonArray;
+
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.Value;
+
+/**
+ * A lazy PHP view of a JSON array, exposed to PHP as Vertx\JsonArrayView.
+ */
+public class JsonArrayView extends JsonView {
+
+  private JsonArray json;
+
+  private int position;
+
+  public JsonArrayView(JsonArray json) {
+    super(null, null);
+    this.json = json;
+  }
+
+  JsonArrayView(JsonView parent, Object key, JsonArray json) {
+    super(parent, key);
+    this.json = json;
+  }
+
+  @Override
+  public JsonArray getJson() {
+    return json;
+  }
+
+  @Override
+  void replaceJson(Object json) {
+    this.json = (JsonArray) json;
+  }
+
+  @Override
+  Object copyJson() {
+    return json.copy();
+  }
+
+  @Override
+  Object getJson(Object key) {
+    int i = (Integer) key;
+    return i >= 0 && i < json.size() ? json.getValue(i) : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  void putJson(Object key, Object value) {
+    json.getList().set((Integer) key, value);
+  }
+
+  public Value get(Env env, Value index) {
+    int i = index.toInt();
+    if (i < 0 || i >= json.size()) {
+      return NullValue.NULL;
+    }
+    return toValue(env, i, json.getValue(i));
+  }
+
+  /**
+   * Sets the value at an index, or appends it when the index is null or
+   * the size of the array. Other indexes past the end are ignored with a
+   * notice, as the array cannot have gaps.
+   */
+  @SuppressWarnings("unchecked")
+  public JsonArrayView set(Env env, Value index, Value value) {
+    // Owning may pick up changes made through sibling views, check after.
+    own();
+    boolean append = index == null || index.isNull() || index.toInt() == json.size();
+    if (!append && (index.toInt() < 0 || index.toInt() > json.size())) {
+      env.notice("Undefined offset: " + index.toInt());
+      return this;
+    }
+    Object element = toJson(env, value);
+    if (append) {
+      json.getList().add(element);
+    }
+    else {
+      json.getList().set(index.toInt(), element);
+    }
+    return this;
+  }
+
+  public JsonArrayView remove(Env env, Value index) {
+    int i = index.toInt();
+    if (i >= 0 && i < json.size()) {
+      own();
+      json.remove(i);
+    }
+    return this;
+  }
+
+  @Override
+  public boolean offsetExists(Env env, Value index) {
+    int i = index.toInt();
+    return i >= 0 && i < json.size() && json.getValue(i) != null;
+  }
+
+  @Override
+  public Value offsetGet(Env env, Value index) {
+    return get(env, index);
+  }
+
+  @Override
+  public Value offsetSet(Env env, Value index, Value value) {
+    set(env, index, value);
+    return null;
+  }
+
+  @Override
+  public Value offsetUnset(Env env, Value index) {
+    remove(env, index);
+    return null;
+  }
+
+  @Override
+  public int count(Env env) {
+    return json.size();
+  }
+
+  @Override
+  public void rewind(Env env) {
+    position = 0;
+  }
+
+  @Override
+  public boolean valid(Env env) {
+    return position < json.size();
+  }
+
+  @Override
+  public Value key(Env env) {
+    return valid(env) ? LongValue.create(position) : NullValue.NULL;
+  }
+
+  @Override
+  public Value current(Env env) {
+    if (!valid(env)) {
+      return BooleanValue.FALSE;
+    }
+    return toValue(env, position, json.getValue(position));
+  }
+
+  @Override
+  public void next(Env env) {
+    position++;
+  }
+
+  @Override
+  public Value toArray(Env env) {
+    return toArrayValue(env, json);
+  }
+
+  @Override
+  public String encode() {
+    return json.encode();
+  }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.json;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.lang.php.Gettable;
+import io.vertx.lang.php.Settable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+
+/**
+ * A lazy PHP view of a JSON object, exposed to PHP as Vertx\JsonObjectView.
+ *
+ * Fields are read with array or property syntax:
+ *
+ * <pre>
+ * $message = Vertx\JsonObjectView::of($msg->body());
+ * if ($message['type'] == 'order') {
+ *   $id = $message->order['id'];
+ * }
+ * </pre>
+ */
+public class JsonObjectView extends JsonView implements Gettable, Settable {
+
+  private JsonObject json;
+
+  /**
+   * The field names being iterated, taken when iteration is rewound.
+   */
+  private List<String> names;
+
+  private int position;
+
+  public JsonObjectView(JsonObject json) {
+    super(null, null);
+    this.json = json;
+  }
+
+  JsonObjectView(JsonView parent, Object key, JsonObject json) {
+    super(parent, key);
+    this.json = json;
+  }
+
+  @Override
+  public JsonObject getJson() {
+    return json;
+  }
+
+  @Override
+  void replaceJson(Object json) {
+    this.json = (JsonObject) json;
+  }
+
+  @Override
+  Object copyJson() {
+    return json.copy();
+  }
+
+  @Override
+  Object getJson(Object key) {
+    return json.getValue((String) key);
+  }
+
+  @Override
+  void putJson(Object key, Object value) {
+    json.put((String) key, value);
+  }
+
+  public Value get(Env env, Value name) {
+    String key = name.toString();
+    return toValue(env, key, json.getValue(key));
+  }
+
+  public JsonObjectView set(Env env, Value name, Value value) {
+    own();
+    json.put(name.toString(), toJson(env, value));
+    return this;
+  }
+
+  public boolean has(Env env, Value name) {
+    return json.containsKey(name.toString());
+  }
+
+  public JsonObjectView remove(Env env, Value name) {
+    if (json.containsKey(name.toString())) {
+      own();
+      json.remove(name.toString());
+    }
+    return this;
+  }
+
+  public Value keys(Env env) {
+    ArrayValue keys = new ArrayValueImpl();
+    for (String name : json.fieldNames()) {
+      keys.put(env.createString(name));
+    }
+    return keys;
+  }
+
+  @Override
+  public Value __getField(Env env, StringValue name) {
+    String key = name.toString();
+    if (!json.containsKey(key)) {
+      return null;
+    }
+    return toValue(env, key, json.getValue(key));
+  }
+
+  @Override
+  public void __setField(Env env, StringValue name, Value value) {
+    set(env, name, value);
+  }
+
+  @Override
+  public boolean offsetExists(Env env, Value name) {
+    return json.getValue(name.toString()) != null;
+  }
+
+  @Override
+  public Value offsetGet(Env env, Value name) {
+    return get(env, name);
+  }
+
+  @Override
+  public Value offsetSet(Env env, Value name, Value value) {
+    set(env, name, value);
+    return null;
+  }
+
+  @Override
+  public Value offsetUnset(Env env, Value name) {
+    remove(env, name);
+    return null;
+  }
+
+  @Override
+  public int count(Env env) {
+    return json.size();
+  }
+
+  @Override
+  public void rewind(Env env) {
+    names = new ArrayList<>(json.fieldNames());
+    position = 0;
+  }
+
+  @Override
+  public boolean valid(Env env) {
+    return names != null && position < names.size();
+  }
+
+  @Override
+  public Value key(Env env) {
+    return valid(env) ? env.createString(names.get(position)) : NullValue.NULL;
+  }
+
+  @Override
+  public Value current(Env env) {
+    if (!valid(env)) {
+      return BooleanValue.FALSE;
+    }
+    String key = names.get(position);
+    return toValue(env, key, json.getValue(key));
+  }
+
+  @Override
+  public void next(Env env) {
+    position++;
+  }
+
+  @Override
+  public Value toArray(Env env) {
+    return toArrayValue(env, json);
+  }
+
+  @Override
+  public String encode() {
+    return json.encode();
+  }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.json;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.util.Iterator;
+
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.DoubleValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.ObjectExtValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.lib.spl.ArrayAccess;
+import com.caucho.quercus.lib.spl.Countable;
+
+/**
+ * A PHP view of a Vert.x JSON object or array that converts values on
+ * first access.
+ *
+ * Nested objects and arrays are returned as views of their own, so
+ * reading a few fields of a large message does not convert the rest of
+ * it. The wrapped JSON may be shared, e.g. by the consumers of an event
+ * bus message, so it is copied before the first change made through the
+ * view; changes to a nested view copy its parents as well.
+ */
+public abstract class JsonView implements ArrayAccess, Countable, com.caucho.quercus.lib.spl.Iterator {
+
+  /**
+   * The view this view is nested in, null for the root.
+   */
+  private JsonView parent;
+
+  /**
+   * The key or index of this view in its parent.
+   */
+  private Object key;
+
+  /**
+   * Whether the wrapped JSON is a copy owned by this view.
+   */
+  private boolean owned;
+
+  JsonView(JsonView parent, Object key) {
+    this.parent = parent;
+    this.key = key;
+  }
+
+  /**
+   * Creates a view of a JSON object or array, passing other values on as is.
+   */
+  public static Value of(Env env, Value json) {
+    Object object = json.isObject() ? json.toJavaObject() : null;
+    if (object instanceof JsonObject) {
+      return env.wrapJava(new JsonObjectView((JsonObject) object));
+    }
+    if (object instanceof JsonArray) {
+      return env.wrapJava(new JsonArrayView((JsonArray) object));
+    }
+    return json;
+  }
+
+  /**
+   * @return the wrapped JSON object or array
+   */
+  public abstract Object getJson();
+
+  abstract void replaceJson(Object json);
+
+  abstract Object copyJson();
+
+  /**
+   * Converts the view to a PHP array.
+   */
+  public abstract Value toArray(Env env);
+
+  /**
+   * Encodes the view to a JSON string.
+   */
+  public abstract String encode();
+
+  public String __toString() {
+    return encode();
+  }
+
+  /**
+   * Makes the wrapped JSON a copy owned by this view, before changing it.
+   */
+  void own() {
+    if (owned) {
+      return;
+    }
+    if (parent != null) {
+      // Owning the parent deep copies it, so the JSON found at the key is
+      // already private to the tree and shared with sibling views of it.
+      // A stale copy of the JSON this view wrapped would lose their changes.
+      parent.own();
+      Object current = parent.getJson(key);
+      if (current != null && current.getClass() == getJson().getClass()) {
+        replaceJson(current);
+      }
+      else {
+        // The key was replaced or removed since, the view is detached.
+        replaceJson(copyJson());
+      }
+    }
+    else {
+      replaceJson(copyJson());
+    }
+    owned = true;
+  }
+
+  /**
+   * Gets a nested JSON value without converting it, null if there is none.
+   */
+  abstract Object getJson(Object key);
+
+  /**
+   * Puts a nested JSON value without converting it.
+   */
+  abstract void putJson(Object key, Object json);
+
+  /**
+   * Converts a JSON value to a PHP value, creating views of nested objects
+   * and arrays.
+   */
+  Value toValue(Env env, Object key, Object value) {
+    if (value == null) {
+      return NullValue.NULL;
+    }
+    if (value instanceof JsonObject) {
+      JsonObjectView view = new JsonObjectView(this, key, (JsonObject) value);
+      view.owned = owned;
+      return env.wrapJava(view);
+    }
+    if (value instanceof JsonArray) {
+      JsonArrayView view = new JsonArrayView(this, key, (JsonArray) value);
+      view.owned = owned;
+      return env.wrapJava(view);
+    }
+    if (value instanceof String) {
+      return env.createString((String) value);
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return DoubleValue.create(((Number) value).doubleValue());
+    }
+    if (value instanceof Number) {
+      return LongValue.create(((Number) value).longValue());
+    }
+    if (value instanceof Boolean) {
+      return BooleanValue.create((Boolean) value);
+    }
+    return env.wrapJava(value);
+  }
+
+  /**
+   * Converts a PHP value to a JSON value, as PhpTypes.arrayToJsonObject() does.
+   */
+  static Object toJson(Env env, Value value) {
+    Object object = value.isObject() ? value.toJavaObject() : null;
+    if (object instanceof JsonView) {
+      return ((JsonView) object).getJson();
+    }
+    if (value.isArray()) {
+      Iterator<Value> keys = value.getKeyIterator(env);
+      while (keys.hasNext()) {
+        Value key = keys.next();
+        if (key.isString() || key.isBoolean()) {
+          return PhpTypes.arrayToJsonObject(env, value);
+        }
+      }
+      return PhpTypes.arrayToJsonArray(env, value);
+    }
+    if (value.isBoolean()) {
+      return value.toBoolean();
+    }
+    if (value.isDouble()) {
+      return value.toJavaDouble();
+    }
+    if (value.isNumeric()) {
+      return value.toLong();
+    }
+    if (value.isString()) {
+      return value.toString();
+    }
+    if (value instanceof ObjectExtValue) {
+      return PhpTypes.arrayToJsonObject(env, value);
+    }
+    if (value.getClassName() == null || value.getClassName().equals("NULL")) {
+      return null;
+    }
+    return value.toString();
+  }
+
+  /**
+   * Converts a JSON value to a PHP value eagerly.
+   */
+  static Value toArrayValue(Env env, Object value) {
+    if (value instanceof JsonObject) {
+      return PhpTypes.arrayFromJson(env, (JsonObject) value);
+    }
+    if (value instanceof JsonArray) {
+      return PhpTypes.arrayFromJson(env, (JsonArray) value);
+    }
+    return env.wrapJava(value);
+  }
+
+}
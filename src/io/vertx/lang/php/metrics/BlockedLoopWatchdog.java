@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.metrics;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.caucho.quercus.env.Env;
+
+/**
+ * Reports PHP callbacks that block an event loop for longer than a
+ * threshold, with the PHP call stack they are stuck in.
+ *
+ * A background thread checks the callbacks tracked by {@link EnvTracker}
+ * a few times per threshold and reports each blocking callback once, as a
+ * warning in the log and, when an address is set, as a JSON message
+ * published on the event bus:
+ *
+ * <pre>
+ * {"thread": "vert.x-eventloop-thread-0", "blockedMillis": 2012,
+ *  "stack": ["handle (/app/server.php:12)", "{main} (/app/server.php:30)"]}
+ * </pre>
+ */
+public class BlockedLoopWatchdog {
+
+  private static final Logger log = LoggerFactory.getLogger(BlockedLoopWatchdog.class);
+
+  private final Vertx vertx;
+
+  private final long thresholdNanos;
+
+  private final String address;
+
+  private final ScheduledExecutorService checker;
+
+  /**
+   * Starts watching the event loops.
+   *
+   * @param vertx The Vert.x instance to publish reports with.
+   * @param thresholdMillis How long a callback may run before it is reported.
+   * @param address The event bus address to publish reports to, or null to only log them.
+   */
+  public BlockedLoopWatchdog(Vertx vertx, long thresholdMillis, String address) {
+    this.vertx = vertx;
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.address = address;
+    this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "vertx-php-blocked-loop-checker");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    EnvTracker.acquire();
+    long interval = Math.max(1, thresholdMillis / 4);
+    checker.scheduleAtFixedRate(this::check, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops watching the event loops.
+   */
+  public void close() {
+    checker.shutdownNow();
+    EnvTracker.release();
+  }
+
+  private void check() {
+    long now = System.nanoTime();
+    for (EnvTracker.Slot slot : EnvTracker.getSlots()) {
+      if (!slot.isEventLoop() || slot.isReported()) {
+        continue;
+      }
+      long start = slot.getStart();
+      Env env = slot.getEnv();
+      if (start == 0 || env == null || now - start < thresholdNanos) {
+        continue;
+      }
+
+      List<String> stack = PhpStackTrace.capture(env);
+      if (slot.getStart() != start) {
+        // The callback returned while the stack was being captured.
+        continue;
+      }
+      slot.setReported(true);
+      report(slot.getThread(), TimeUnit.NANOSECONDS.toMillis(now - start), stack);
+    }
+  }
+
+  private void report(Thread thread, long blockedMillis, List<String> stack) {
+    StringBuilder message = new StringBuilder();
+    message.append("PHP callback has blocked ").append(thread.getName())
+        .append(" for ").append(blockedMillis).append(" ms");
+    for (String frame : stack) {
+      message.append("\n\tat ").append(frame);
+    }
+    log.warn(message.toString());
+
+    if (address != null) {
+      JsonObject event = new JsonObject()
+          .put("thread", thread.getName())
+          .put("blockedMillis", blockedMillis)
+          .put("stack", new JsonArray(stack));
+      vertx.eventBus().publish(address, event);
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.metrics;
+
+import io.vertx.core.Context;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.caucho.quercus.env.Env;
+
+/**
+ * Tracks which environment each thread is running a PHP callback in, so
+ * monitors on other threads can inspect the PHP code being run.
+ *
+ * Tracking is only done while a monitor uses it. Each thread owns a slot
+ * that it updates with plain volatile writes when entering and leaving a
+ * callback. Event loop threads keep their slot, other threads give it up
+ * when they leave the callback, and slots of threads that ended are
+ * dropped.
+ */
+public class EnvTracker {
+
+  private static final AtomicInteger users = new AtomicInteger();
+
+  private static volatile boolean enabled = false;
+
+  private static final Set<Slot> slots = ConcurrentHashMap.newKeySet();
+
+  private static final ThreadLocal<Slot> slot = ThreadLocal.withInitial(() -> {
+    Slot created = new Slot(Thread.currentThread(), Context.isOnEventLoopThread());
+    slots.add(created);
+    return created;
+  });
+
+  private EnvTracker() {
+  }
+
+  /**
+   * Starts tracking on behalf of a monitor.
+   */
+  public static void acquire() {
+    users.incrementAndGet();
+    enabled = true;
+  }
+
+  /**
+   * Stops tracking once no monitor uses it anymore.
+   */
+  public static void release() {
+    if (users.decrementAndGet() <= 0) {
+      enabled = false;
+    }
+  }
+
+  /**
+   * Records that the current thread enters a PHP callback.
+   *
+   * @return the slot to exit once the callback returns, or null when not tracking
+   */
+  public static Slot enter(Env env) {
+    if (!enabled) {
+      return null;
+    }
+    Slot current = slot.get();
+    if (current.depth++ == 0) {
+      current.env = env;
+      current.reported = false;
+      current.start = System.nanoTime();
+    }
+    return current;
+  }
+
+  /**
+   * @return the slots of the event loop threads and of the threads running a tracked callback
+   */
+  public static Collection<Slot> getSlots() {
+    slots.removeIf(tracked -> !tracked.thread.isAlive());
+    return slots;
+  }
+
+  /**
+   * The callback a thread is running.
+   */
+  public static class Slot {
+
+    private final Thread thread;
+
+    private final boolean eventLoop;
+
+    private int depth;
+
+    private volatile Env env;
+
+    private volatile long start;
+
+    private volatile boolean reported;
+
+    Slot(Thread thread, boolean eventLoop) {
+      this.thread = thread;
+      this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Records that the thread left the callback.
+     */
+    public void exit() {
+      if (--depth == 0) {
+        start = 0;
+        env = null;
+        if (!eventLoop) {
+          slots.remove(this);
+          slot.remove();
+        }
+      }
+    }
+
+    public Thread getThread() {
+      return thread;
+    }
+
+    public boolean isEventLoop() {
+      return eventLoop;
+    }
+
+    /**
+     * @return the environment of the running callback, or null if idle
+     */
+    public Env getEnv() {
+      return env;
+    }
+
+    /**
+     * @return the time the running callback started at, or 0 if idle
+     */
+    public long getStart() {
+      return start;
+    }
+
+    public boolean isReported() {
+      return reported;
+    }
+
+    public void setReported(boolean reported) {
+      this.reported = reported;
+    }
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.metrics;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.lang.php.util.PhpTypes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.Value;
+
+/**
+ * Latency, invocation and error counts of the PHP callbacks invoked by
+ * Vert.x handlers, exposed to PHP as Vertx\Util\HandlerMetrics.
+ *
+ * Callbacks are identified by the file and line they are declared on, so
+ * every closure created by the same line of PHP code shares its numbers.
+ * Recording is off by default.
+ */
+public class HandlerMetrics {
+
+  private static volatile boolean enabled = false;
+
+  private static final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+  private HandlerMetrics() {
+  }
+
+  public static void setEnabled(boolean enabled) {
+    HandlerMetrics.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the statistics of a PHP callback.
+   */
+  public static Stats forCallable(Env env, Callable callable) {
+    String key;
+    String fileName = callable.getDeclFileName(env);
+    if (fileName != null) {
+      key = fileName + ":" + callable.getDeclStartLine(env);
+    }
+    else {
+      key = callable.getCallbackName();
+    }
+    return stats.computeIfAbsent(key, Stats::new);
+  }
+
+  /**
+   * Returns the statistics recorded for a callback declaration, e.g.
+   * "/app/server.php:12", or null if none were recorded.
+   */
+  public static Stats get(String key) {
+    return stats.get(key);
+  }
+
+  /**
+   * @return the statistics of every callback keyed by declaration
+   */
+  public static Map<String, Stats> getAll() {
+    return stats;
+  }
+
+  /**
+   * Returns the statistics of every callback as JSON, with latencies in microseconds.
+   */
+  public static JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+      json.put(entry.getKey(), entry.getValue().toJson());
+    }
+    return json;
+  }
+
+  /**
+   * Returns the statistics of every callback as a PHP array.
+   */
+  public static Value snapshot(Env env) {
+    return PhpTypes.arrayFromJson(env, toJson());
+  }
+
+  /**
+   * Clears all recorded statistics.
+   */
+  public static void reset() {
+    stats.clear();
+  }
+
+  /**
+   * The statistics of a single callback declaration.
+   */
+  public static class Stats {
+
+    private final String key;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    Stats(String key) {
+      this.key = key;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Records an invocation of the callback.
+     */
+    public void record(long nanos) {
+      latency.record(nanos);
+    }
+
+    /**
+     * Records an invocation that threw an exception.
+     */
+    public void error() {
+      errors.incrementAndGet();
+    }
+
+    public long getInvocations() {
+      return latency.getCount();
+    }
+
+    public long getErrors() {
+      return errors.get();
+    }
+
+    public LatencyHistogram getLatency() {
+      return latency;
+    }
+
+    public JsonObject toJson() {
+      return new JsonObject()
+          .put("invocations", latency.getCount())
+          .put("errors", errors.get())
+          .put("mean", latency.getMean() / 1000.0)
+          .put("p50", latency.getValueAtPercentile(50) / 1000.0)
+          .put("p90", latency.getValueAtPercentile(90) / 1000.0)
+          .put("p99", latency.getValueAtPercentile(99) / 1000.0)
+          .put("p999", latency.getValueAtPercentile(99.9) / 1000.0)
+          .put("max", latency.getMax() / 1000.0);
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.caucho.quercus.Location;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.expr.Expr;
+
+/**
+ * Captures the PHP call stack of an environment.
+ */
+public class PhpStackTrace {
+
+  private PhpStackTrace() {
+  }
+
+  /**
+   * Captures the PHP call stack of an environment, innermost frame first.
+   *
+   * The environment may be running on another thread, in which case the
+   * stack is read while it changes and may be slightly inconsistent.
+   *
+   * @return frames formatted as "function (file:line)"
+   */
+  public static List<String> capture(Env env) {
+    return capture(env, true);
+  }
+
+  /**
+   * Captures the PHP call stack of an environment, innermost frame first.
+   *
+   * @param withLines Whether frames include the line number, otherwise
+   *   frames are formatted as "function (file)".
+   */
+  public static List<String> capture(Env env, boolean withLines) {
+    List<String> frames = new ArrayList<>();
+    try {
+      frames.add(format(env.getLocation(), withLines));
+      for (int i = env.getCallDepth() - 1; i >= 0; i--) {
+        Expr call = env.peekCall(i);
+        if (call != null) {
+          frames.add(format(call.getLocation(), withLines));
+        }
+      }
+    }
+    catch (RuntimeException e) {
+      // The stack changed underneath us, keep the frames read so far.
+    }
+    return frames.isEmpty() ? Collections.<String>emptyList() : frames;
+  }
+
+  private static String format(Location location, boolean withLines) {
+    if (location == null) {
+      return "{unknown}";
+    }
+    StringBuilder builder = new StringBuilder();
+    if (location.getClassName() != null) {
+      builder.append(location.getClassName()).append("::");
+    }
+    builder.append(location.getFunctionName() != null ? location.getFunctionName() : "{main}");
+
+    String fileName = location.getUserPath();
+    if (fileName == null) {
+      fileName = location.getFileName();
+    }
+    builder.append(" (").append(fileName);
+    if (withLines) {
+      builder.append(':').append(location.getLineNumber());
+    }
+    builder.append(')');
+    return builder.toString();
+  }
+
+}
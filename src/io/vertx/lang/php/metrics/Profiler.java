@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.caucho.quercus.annotation.Optional;
+import com.caucho.quercus.env.Env;
+
+/**
+ * A sampling profiler for PHP code, exposed to PHP as Vertx\Util\Profiler.
+ *
+ * While running, a background thread samples the PHP call stack of every
+ * callback being run at the given rate. Samples are aggregated in the
+ * collapsed stack format read by flame graph tools, one line per distinct
+ * stack with its frames outermost first:
+ *
+ * <pre>
+ * {main} (/app/server.php);handle (/app/server.php);render (/app/view.php) 42
+ * </pre>
+ */
+public class Profiler {
+
+  public static final int DEFAULT_RATE = 100;
+
+  private static final ConcurrentHashMap<String, AtomicLong> samples = new ConcurrentHashMap<>();
+
+  private static ScheduledExecutorService sampler;
+
+  private Profiler() {
+  }
+
+  /**
+   * Starts sampling, discarding the samples of a previous run.
+   *
+   * @param rate The number of samples taken per second, defaults to 100.
+   * @return false if the profiler was already running
+   */
+  public static synchronized boolean start(@Optional int rate) {
+    if (sampler != null) {
+      return false;
+    }
+    if (rate <= 0) {
+      rate = DEFAULT_RATE;
+    }
+
+    samples.clear();
+    EnvTracker.acquire();
+    sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "vertx-php-profiler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long interval = Math.max(1, TimeUnit.SECONDS.toMicros(1) / rate);
+    sampler.scheduleAtFixedRate(Profiler::sample, interval, interval, TimeUnit.MICROSECONDS);
+    return true;
+  }
+
+  /**
+   * Stops sampling.
+   *
+   * @return the samples collected in collapsed stack format
+   */
+  public static synchronized String stop() {
+    if (sampler != null) {
+      sampler.shutdownNow();
+      sampler = null;
+      EnvTracker.release();
+    }
+    return dump();
+  }
+
+  public static synchronized boolean isRunning() {
+    return sampler != null;
+  }
+
+  /**
+   * @return the samples collected so far in collapsed stack format
+   */
+  public static String dump() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, AtomicLong> entry : samples.entrySet()) {
+      builder.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static void sample() {
+    for (EnvTracker.Slot slot : EnvTracker.getSlots()) {
+      Env env = slot.getEnv();
+      if (env == null) {
+        continue;
+      }
+      List<String> frames = PhpStackTrace.capture(env, false);
+      if (frames.isEmpty()) {
+        continue;
+      }
+
+      StringBuilder stack = new StringBuilder();
+      for (int i = frames.size() - 1; i >= 0; i--) {
+        stack.append(frames.get(i).replace(';', ':'));
+        if (i > 0) {
+          stack.append(';');
+        }
+      }
+      samples.computeIfAbsent(stack.toString(), key -> new AtomicLong()).incrementAndGet();
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.metrics;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The time spent in each phase of setting up a Quercus context or
+ * starting a PHP verticle.
+ *
+ * Phases are timed as laps: each lap is the time since the previous lap,
+ * or since the timings were created or marked.
+ */
+public class StartupTimings {
+
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+
+  private long mark = System.nanoTime();
+
+  /**
+   * Starts timing the next phase from now.
+   */
+  public void mark() {
+    mark = System.nanoTime();
+  }
+
+  /**
+   * Records the time since the last lap or mark as a phase.
+   */
+  public void lap(String phase) {
+    long now = System.nanoTime();
+    record(phase, now - mark);
+    mark = now;
+  }
+
+  /**
+   * Adds time to a phase.
+   */
+  public void record(String phase, long nanos) {
+    Long previous = phases.get(phase);
+    phases.put(phase, previous != null ? previous + nanos : nanos);
+  }
+
+  /**
+   * @return the time of each phase in nanoseconds, in the order they were first recorded
+   */
+  public Map<String, Long> getPhases() {
+    return Collections.unmodifiableMap(phases);
+  }
+
+  /**
+   * @return the total time of all phases in nanoseconds
+   */
+  public long getTotal() {
+    long total = 0;
+    for (long nanos : phases.values()) {
+      total += nanos;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the phases as JSON, with times in milliseconds.
+   */
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+      json.put(entry.getKey(), entry.getValue() / 1000000.0);
+    }
+    json.put("total", getTotal() / 1000000.0);
+    return json;
+  }
+
+}
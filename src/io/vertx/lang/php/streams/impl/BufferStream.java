@@ -0,0 +1,36 @@
+package io.vertx.lang.php.streams.impl;
+
+import java.io.IOException;
+
+import com.caucho.vfs.StreamImpl;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A stream that appends everything written to it to a Vert.x buffer.
+ */
+public class BufferStream extends StreamImpl {
+
+	private final Buffer buffer;
+
+	public BufferStream() {
+		this(Buffer.buffer());
+	}
+
+	public BufferStream(Buffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public Buffer getBuffer() {
+		return buffer;
+	}
+
+	@Override
+	public boolean canWrite() {
+		return true;
+	}
+
+	@Override
+	public void write(byte []buf, int offset, int length, boolean isEnd) throws IOException {
+		buffer.appendBytes(buf, offset, length);
+	}
+}
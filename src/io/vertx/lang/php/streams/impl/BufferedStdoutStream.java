@@ -0,0 +1,181 @@
+package io.vertx.lang.php.streams.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.caucho.vfs.StreamImpl;
+
+import io.vertx.core.Context;
+
+/**
+ * A stdout stream that appends to an in-memory ring buffer and writes it out
+ * on a background thread, once half the buffer is used or the flush interval
+ * has passed, and on close. Flushing the stream does not write, so wrapping
+ * it in an InstantWriteStream only costs a copy per PHP echo.
+ */
+public class BufferedStdoutStream extends StreamImpl {
+
+	/**
+	 * What to do with output when the buffer is full because stdout is slow.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait for the buffer to be written out. Event loop threads never
+		 * wait and drop the output instead.
+		 */
+		BLOCK,
+		/** Discard the output that does not fit and count the dropped bytes. */
+		DROP
+	}
+
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "vertx-php-stdout-flusher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private final OutputStream target;
+
+	private final OverflowPolicy policy;
+
+	private final byte[] ring;
+
+	private final int flushSize;
+
+	private final Object drainLock = new Object();
+
+	private final ScheduledFuture<?> timer;
+
+	private int head;
+
+	private int size;
+
+	private boolean flushScheduled;
+
+	private boolean closed;
+
+	public BufferedStdoutStream(OutputStream target, int capacity, long flushIntervalMillis, OverflowPolicy policy) {
+		this.target = target;
+		this.policy = policy;
+		this.ring = new byte[capacity];
+		this.flushSize = Math.max(1, capacity / 2);
+		this.timer = flusher.scheduleWithFixedDelay(this::drain, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the number of bytes dropped by all buffered stdout streams
+	 */
+	public static long getDroppedBytes() {
+		return dropped.get();
+	}
+
+	@Override
+	public boolean canWrite() {
+		return true;
+	}
+
+	@Override
+	public void write(byte []buf, int offset, int length, boolean isEnd) throws IOException {
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("stream is closed");
+			}
+			while (length > 0) {
+				int free = ring.length - size;
+				if (free == 0) {
+					scheduleFlush();
+					if (policy == OverflowPolicy.DROP || Context.isOnEventLoopThread()) {
+						dropped.addAndGet(length);
+						break;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException(e);
+					}
+					continue;
+				}
+
+				int tail = (head + size) % ring.length;
+				int count = Math.min(Math.min(free, length), ring.length - tail);
+				System.arraycopy(buf, offset, ring, tail, count);
+				size += count;
+				offset += count;
+				length -= count;
+			}
+			if (size >= flushSize) {
+				scheduleFlush();
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Output is written by the flusher, never on the writing thread.
+	}
+
+	/**
+	 * Writes out the remaining output and stops the flush timer.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		timer.cancel(false);
+		drain();
+	}
+
+	private void scheduleFlush() {
+		if (!flushScheduled) {
+			flushScheduled = true;
+			flusher.execute(this::drain);
+		}
+	}
+
+	/**
+	 * Writes the buffered output to the target.
+	 */
+	private void drain() {
+		synchronized (drainLock) {
+			byte[] chunk;
+			synchronized (this) {
+				flushScheduled = false;
+				if (size == 0) {
+					return;
+				}
+				chunk = new byte[size];
+				int first = Math.min(size, ring.length - head);
+				System.arraycopy(ring, head, chunk, 0, first);
+				System.arraycopy(ring, 0, chunk, first, size - first);
+				head = (head + size) % ring.length;
+				size = 0;
+				notifyAll();
+			}
+			try {
+				target.write(chunk);
+				target.flush();
+			} catch (IOException e) {
+				// stdout is gone, there is nowhere left to report to.
+			}
+		}
+	}
+
+	/**
+	 * Creates a stream writing to the standard output.
+	 */
+	public static BufferedStdoutStream create(int capacity, long flushIntervalMillis, OverflowPolicy policy) {
+		return new BufferedStdoutStream(System.out, capacity, flushIntervalMillis, policy);
+	}
+}
@@ -0,0 +1,65 @@
+package io.vertx.lang.php.streams.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.caucho.vfs.StreamImpl;
+
+/**
+ * A stream that writes to its base stream unless output has been
+ * redirected to another stream. Redirects nest, the last pushed stream
+ * receives the output until it is popped again.
+ */
+public class RedirectStream extends StreamImpl {
+
+	private final StreamImpl base;
+
+	private final Deque<StreamImpl> targets = new ArrayDeque<>();
+
+	private StreamImpl current;
+
+	public RedirectStream(StreamImpl base) {
+		this.base = base;
+		this.current = base;
+	}
+
+	/**
+	 * Redirects output to the given stream.
+	 */
+	public void push(StreamImpl target) {
+		targets.push(current);
+		current = target;
+	}
+
+	/**
+	 * Restores the output to the stream in use before the last push.
+	 *
+	 * @return the stream the output was redirected to.
+	 */
+	public StreamImpl pop() {
+		StreamImpl target = current;
+		current = targets.isEmpty() ? base : targets.pop();
+		return target;
+	}
+
+	@Override
+	public boolean canWrite() {
+		return true;
+	}
+
+	@Override
+	public void write(byte []buf, int offset, int length, boolean isEnd) throws IOException {
+		current.write(buf, offset, length, isEnd);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		current.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		base.close();
+	}
+}
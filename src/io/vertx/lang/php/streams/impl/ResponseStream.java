@@ -0,0 +1,64 @@
+package io.vertx.lang.php.streams.impl;
+
+import java.io.IOException;
+
+import com.caucho.vfs.StreamImpl;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * A stream that writes to an HTTP response as chunks. Output is collected
+ * until a chunk is full, so many small writes become a single response write.
+ */
+public class ResponseStream extends StreamImpl {
+
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	private final HttpServerResponse response;
+
+	private final int chunkSize;
+
+	private Buffer chunk;
+
+	public ResponseStream(HttpServerResponse response, int chunkSize) {
+		this.response = response;
+		this.chunkSize = chunkSize;
+		this.chunk = Buffer.buffer(chunkSize);
+		if (!response.isChunked() && !response.headers().contains("Content-Length")) {
+			response.setChunked(true);
+		}
+	}
+
+	@Override
+	public boolean canWrite() {
+		return true;
+	}
+
+	@Override
+	public void write(byte []buf, int offset, int length, boolean isEnd) throws IOException {
+		chunk.appendBytes(buf, offset, length);
+		if (chunk.length() >= chunkSize) {
+			writeChunk();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Chunks are written once full or when the stream is closed.
+	}
+
+	/**
+	 * Writes the output collected so far to the response.
+	 */
+	@Override
+	public void close() throws IOException {
+		writeChunk();
+	}
+
+	private void writeChunk() {
+		if (chunk.length() > 0) {
+			response.write(chunk);
+			chunk = Buffer.buffer(chunkSize);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.util;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.lang.php.AwaitScheduler;
+
+import com.caucho.quercus.annotation.Optional;
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.Value;
+
+/**
+ * Runs blocking PHP work off the event loop, exposed to PHP as
+ * Vertx\Util\Blocking.
+ *
+ * The callable runs on a bounded worker pool shared by the PHP verticles
+ * of a Vert.x instance, and its return value is passed to the result
+ * handler on the calling verticle's context. Each call runs in its own
+ * environment of the verticle's Quercus context, which has the functions
+ * and classes the verticle script declared when it ran, but not its
+ * globals. Values the callable captured with
+ * use are copied when it is created, except for objects, which the
+ * callable shares with the verticle.
+ *
+ * <pre>
+ * Blocking::execute(function() use ($path) {
+ *   return parse_big_file($path);
+ * }, function($result, $error) {
+ *   ...
+ * });
+ * </pre>
+ */
+public class Blocking {
+
+  public static final String POOL_NAME = "vertx-php-blocking";
+
+  /**
+   * The Env special value holding the Owner of an environment.
+   */
+  public static final String OWNER = "vertx.blocking.owner";
+
+  private Blocking() {
+  }
+
+  /**
+   * The verticle blocking callables run for, which provides their worker
+   * pool and environments.
+   */
+  public interface Owner {
+
+    /**
+     * @return the worker pool of the verticle, or null once it stopped
+     */
+    WorkerExecutor getExecutor();
+
+    /**
+     * Creates an environment with the declarations of the verticle, or
+     * returns null once it stopped.
+     */
+    Env create();
+
+    /**
+     * Starts an environment made by create() on the thread it is used on.
+     */
+    void start(Env env);
+  }
+
+  /**
+   * Runs a PHP callable on the worker pool.
+   *
+   * @param env The Quercus environment.
+   * @param callable The PHP callable to run.
+   * @param handler A PHP callable receiving the result and error.
+   * @param ordered Whether calls from the same context run one after
+   *   another in call order, defaults to true.
+   */
+  public static void execute(Env env, Value callable, Value handler, @Optional BooleanValue ordered) {
+    PhpTypes.assertCallable(env, callable);
+    Context context = AwaitScheduler.currentContext();
+    Object value = env.getSpecialValue(OWNER);
+    if (context == null || !(value instanceof Owner)) {
+      env.error(PhpTypes.buildErrorMessage(env, "Blocking code can only be executed from a verticle."));
+      return;
+    }
+
+    final Callable task = PhpTypes.toCallable(env, callable);
+    final Owner owner = (Owner) value;
+    final WorkerExecutor executor = owner.getExecutor();
+    final Env taskEnv = executor != null ? owner.create() : null;
+    if (taskEnv == null) {
+      env.error(PhpTypes.buildErrorMessage(env, "Blocking code can only be executed while the verticle runs."));
+      return;
+    }
+
+    final boolean isOrdered = ordered == null || ordered.toBoolean();
+    final Handler<AsyncResult<Value>> resultHandler = HandlerFactory.createAsyncGenericHandler(env, handler);
+    Handler<Void> submit = v -> executor.<Value>executeBlocking(future -> {
+      try {
+        owner.start(taskEnv);
+        future.complete(task.call(taskEnv).copy());
+      } finally {
+        taskEnv.close();
+      }
+    }, isOrdered, resultHandler);
+    if (Vertx.currentContext() == context) {
+      submit.handle(null);
+    }
+    else {
+      // Submit from the verticle's context, which orders the calls and receives the result.
+      context.runOnContext(submit);
+    }
+  }
+
+}
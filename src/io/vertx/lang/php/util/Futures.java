@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.util;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+
+/**
+ * Static helpers for Vert.x futures.
+ */
+public class Futures {
+
+  private Futures() {
+  }
+
+  /**
+   * Calls the handler once the future completes, after the handler the
+   * future already has. Future.setHandler() replaces that handler, so a
+   * future handed over by PHP code would otherwise lose its own.
+   */
+  public static <T> void onComplete(Future<T> future, Handler<AsyncResult<T>> handler) {
+    final Handler<AsyncResult<T>> previous = future.getHandler();
+    if (previous == null) {
+      future.setHandler(handler);
+    }
+    else {
+      future.setHandler(result -> {
+        previous.handle(result);
+        handler.handle(result);
+      });
+    }
+  }
+
+}
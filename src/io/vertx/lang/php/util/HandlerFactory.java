@@ -20,7 +20,10 @@ import io.vertx.lang.php.*;
 import io.vertx.lang.php.buffer.Buffer;
 
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
 
+import com.caucho.quercus.annotation.Optional;
+import com.caucho.quercus.env.Callable;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.Value;
 
@@ -43,6 +46,54 @@ public class HandlerFactory {
   }
 
 
+  /**
+   * Creates a handler that calls the PHP callable once per batch of events
+   * with an array of the events, for high rate sources such as event bus
+   * consumers or stream data handlers.
+   *
+   * <pre>
+   * $consumer->handler(HandlerFactory::createBatchHandler(function($messages) {
+   *   ...
+   * }, 100, 1000, $consumer));
+   * </pre>
+   *
+   * @param env The Quercus environment.
+   * @param handler The PHP callable receiving each batch.
+   * @param maxItems The maximum number of events in a batch.
+   * @param maxDelayMicros How long the first event of a batch may wait for more.
+   * @param source An optional stream to hold back while a batch is delivered.
+   *   The handler sets its end handler, to deliver the last batch.
+   * @param endHandler An optional callable called once the source ended and
+   *   its last batch was delivered.
+   */
+  public static <T> io.vertx.core.Handler<T> createBatchHandler(Env env, Value handler, int maxItems, long maxDelayMicros,
+      @Optional Value source, @Optional Value endHandler) {
+    PhpTypes.assertCallable(env, handler);
+    Context context = AwaitScheduler.currentContext();
+    if (context == null) {
+      env.error(PhpTypes.buildErrorMessage(env, "Batch handlers can only be created from a verticle."));
+      return null;
+    }
+
+    io.vertx.core.streams.ReadStream<?> stream = null;
+    if (PhpTypes.notNull(source)) {
+      Object object = source.toJavaObject();
+      if (object instanceof io.vertx.core.streams.ReadStream) {
+        stream = (io.vertx.core.streams.ReadStream<?>) object;
+      }
+      else {
+        env.error(PhpTypes.buildErrorMessage(env, "Batch handler source is not a read stream."));
+        return null;
+      }
+    }
+    Callable end = null;
+    if (PhpTypes.notNull(endHandler)) {
+      PhpTypes.assertCallable(env, endHandler);
+      end = PhpTypes.toCallable(endHandler);
+    }
+    return new BatchHandler<T>(env, PhpTypes.toCallable(handler), context, maxItems, maxDelayMicros, stream, end);
+  }
+
   /**
    * Creates a void result handler.
    */
@@ -50,7 +101,7 @@ public class HandlerFactory {
     PhpTypes.assertCallable(env, handler);
     return new Handler<Void>(env, PhpTypes.toCallable(handler)) {
       @Override
-      public void handle(Void arg) {
+      protected void invoke(Void arg) {
         Env env = getEnvironment();
         getCallable().call(env);
       }
@@ -93,13 +144,13 @@ public class HandlerFactory {
     PhpTypes.assertCallable(env, handler);
     return new AsyncResultHandler<Void>(env, PhpTypes.toCallable(handler)) {
       @Override
-      public void handle(AsyncResult<Void> result) {
+      protected void invoke(AsyncResult<Void> result) {
         Env env = getEnvironment();
         if (result.succeeded()) {
-          getCallable().call(env, env.wrapJava(null));
+          getCallable().call(env, toValue(null));
         }
         else {
-          getCallable().call(env, env.wrapJava(result.cause()));
+          getCallable().call(env, toValue(result.cause()));
         }
       }
     };
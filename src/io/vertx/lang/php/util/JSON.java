@@ -1,10 +1,16 @@
 package io.vertx.lang.php.util;
 
 import com.caucho.quercus.env.*;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.lang.php.buffer.Buffer;
+import io.vertx.lang.php.json.JsonArrayView;
+import io.vertx.lang.php.json.JsonObjectView;
 
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -46,41 +52,63 @@ public class JSON {
       return jsonArr.toStringValue();
     }
 
-    boolean hasjsonArr = PhpTypes.notNull(jsonArr);
-    if (hasjsonArr) {
-      Value[] jsonKeys = ((ArrayValue)jsonArr).keysToArray();
+    // Arrays keyed 0, 1, 2... in order are lists, everything else is an object.
+    boolean isAssoc = !JsonEncoder.isSequential(env, (ArrayValue) jsonArr);
+    try {
+      return env.createString(JsonEncoder.encode(env, jsonArr, isAssoc));
+    }
+    catch (IOException err) {
+      return env.createString("null");
+    }
+  }
 
-      boolean isAssoc = false;
-      for(int i = 0; i < jsonKeys.length; i++){
-        final String ks = jsonKeys[i].toString();
-        if(!ks.equals(String.valueOf(i))){
-          isAssoc = true;
-          break;
-        }
-      }
+  /**
+   * The Env special value holding the expected size of the next buffer
+   * encoded in the environment.
+   */
+  private static final String BUFFER_SIZE_HINT = "vertx.json.bufferSizeHint";
+
+  /**
+   * The expected size of the next encoded buffer, adapted to the sizes
+   * encoded so far so buffers rarely have to grow. Kept per environment,
+   * so a verticle sending small messages is not sized after another one
+   * writing large responses.
+   */
+  private static class SizeHint {
+    int size = 256;
+  }
 
-      if (isAssoc) {
-        final JsonObject obj = PhpTypes.arrayToJsonObject(env, jsonArr);
-        try {
-//          System.out.println("[encode] " + obj.toString());
-          return env.createString(obj.toString());
-        }
-        catch (Exception err) {
-          return env.createString("null");
-        }
-      }
-      else {
-        final JsonArray arr = PhpTypes.arrayToJsonArray(env, jsonArr);
-        try {
-//          System.out.println("[encode] " + arr.toString());
-          return env.createString(arr.toString());
-        }
-        catch (Exception err) {
-          return env.createString("null");
-        }
-      }
+  /**
+   * Encodes a value as UTF-8 JSON straight into a buffer, ready to write to
+   * an HTTP response or the event bus.
+   */
+  public static Buffer encodeToBuffer(Env env, Value jsonArr) {
+    SizeHint sizeHint = (SizeHint) env.getSpecialValue(BUFFER_SIZE_HINT);
+    if (sizeHint == null) {
+      sizeHint = new SizeHint();
+      env.setSpecialValue(BUFFER_SIZE_HINT, sizeHint);
     }
-    return env.createString("null");
+    int hint = sizeHint.size;
+    io.vertx.core.buffer.Buffer buffer = io.vertx.core.buffer.Buffer.buffer(hint + (hint >> 2));
+
+    if(jsonArr==null || jsonArr.isNull()){
+      return new Buffer(buffer.appendString("null"));
+    }
+
+    if(!jsonArr.isArray()){
+      return new Buffer(buffer.appendString(jsonArr.toString(), "UTF-8"));
+    }
+
+    boolean isAssoc = !JsonEncoder.isSequential(env, (ArrayValue) jsonArr);
+    try {
+      JsonEncoder.encode(env, jsonArr, isAssoc, buffer);
+    }
+    catch (IOException err) {
+      return new Buffer(io.vertx.core.buffer.Buffer.buffer("null"));
+    }
+    // Move the hint an eighth of the way towards the size just encoded.
+    sizeHint.size = Math.max(64, hint + ((buffer.length() - hint) >> 3));
+    return new Buffer(buffer);
   }
 
   public static Value decode(Env env, StringValue jsonStr, BooleanValue toArray) {
@@ -88,52 +116,63 @@ public class JSON {
       return NullValue.create();
     }
 
-    final String str = jsonStr.toString();
-    if(str.equals("null")) {
+    boolean assoc = toArray != null && toArray.toBoolean();
+    Value result = JsonDecoder.decode(env, jsonStr.toString(), assoc);
+    if(result == null) {
       return NullValue.create();
     }
+    return result;
+  }
 
-    if(toArray!=null && toArray.toBoolean()) {
-//      System.out.println("[decode] " + jsonStr.toString());
-      if(jsonStr.startsWith("[")){
-        try{
-          final JsonArray jsonArr = new JsonArray(str);
-          return PhpTypes.arrayFromJson(env, jsonArr);
-        }
-        catch(Exception err) {
-//          System.out.println("ERR 0 ========= " + err.getMessage());
-//          err.printStackTrace();
-        }
-      }
-      else{
-        try {
-          final JsonObject jsonObj = new JsonObject(str);
-          return PhpTypes.arrayFromJson(env, jsonObj);
-        }
-        catch(Exception err2) {
-//          System.out.println("ERR 1 ========= " + err2.getMessage());
-//          err2.printStackTrace();
-        }
-      }
+  /**
+   * Decodes a JSON object or array into a lazy view that converts values
+   * on first access, for documents of which only a few fields are read.
+   * Like decode(), failures return null and keep the reason for
+   * JsonDecoder.lastError().
+   */
+  @SuppressWarnings("unchecked")
+  public static Value decodeView(Env env, StringValue jsonStr) {
+    if(jsonStr == null) {
       return NullValue.create();
     }
-    else {
-      if(jsonStr.startsWith("[")) {
-        try {
-          final JsonArray jsonArr = new JsonArray(str);
-          return PhpTypes.arrayFromJson(env, jsonArr, true);
-        } catch (Exception err) {}
+
+    try {
+      Object json = Json.mapper.readValue(jsonStr.toString(), Object.class);
+      if(json instanceof Map) {
+        env.setSpecialValue(JsonDecoder.ERROR, null);
+        return env.wrapJava(new JsonObjectView(new JsonObject((Map<String, Object>) json)));
       }
-      else {
-        try {
-          final JsonObject jsonObj = new JsonObject(str);
-          return PhpTypes.arrayFromJson(env, jsonObj, true);
-        } catch (Exception err2) {}
+      if(json instanceof List) {
+        env.setSpecialValue(JsonDecoder.ERROR, null);
+        return env.wrapJava(new JsonArrayView(new JsonArray((List) json)));
       }
+      env.setSpecialValue(JsonDecoder.ERROR, "Syntax error, expected an object or array");
+    }
+    catch(Exception err) {
+      env.setSpecialValue(JsonDecoder.ERROR, "Syntax error, " + err.getMessage());
     }
     return NullValue.create();
   }
 
+  /**
+   * Returns the sizes and hit rates of the object key and shape caches
+   * used when decoding JSON.
+   */
+  public static Value keyStats(Env env) {
+    return PhpTypes.arrayFromJson(env, JsonKeys.forEnv(env).toJson());
+  }
+
+  /**
+   * Returns why the last decode() failed, or NULL if it succeeded.
+   */
+  public static Value lastError(Env env) {
+    String error = JsonDecoder.lastError(env);
+    if(error == null) {
+      return NullValue.create();
+    }
+    return env.createString(error);
+  }
+
   public static Value decode(Env env, StringValue jsonStr) {
     return decode(env, jsonStr, BooleanValue.create(false));
   }
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.DoubleValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.vertx.core.json.Json;
+
+/**
+ * Decodes JSON into PHP values in a single pass.
+ *
+ * Reads the token stream of a Jackson parser and builds PHP arrays or
+ * stdClass objects directly, instead of parsing into JsonObject and
+ * JsonArray instances and copying those. Input longer than the maximum
+ * size or nested deeper than the maximum depth is rejected without being
+ * parsed further; both limits are set per Quercus context. Failures are
+ * not thrown: decode() returns null and the reason is kept for lastError().
+ */
+public class JsonDecoder {
+
+  /**
+   * The Env special value holding the error of the last decode.
+   */
+  public static final String ERROR = "vertx.json.error";
+
+  public static final int DEFAULT_MAX_DEPTH = 512;
+
+  public static final int DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+  private static final JsonFactory factory = Json.mapper.getFactory();
+
+  /**
+   * The limits of the contexts that do not use the defaults.
+   */
+  private static final Map<QuercusContext, int[]> limits = Collections.synchronizedMap(new WeakHashMap<>());
+
+  private final Env env;
+
+  private final boolean assoc;
+
+  private final int depthLimit;
+
+  private final int sizeLimit;
+
+  private final JsonKeys jsonKeys;
+
+  private String error;
+
+  private JsonDecoder(Env env, boolean assoc, int depthLimit, int sizeLimit) {
+    this.env = env;
+    this.assoc = assoc;
+    this.depthLimit = depthLimit;
+    this.sizeLimit = sizeLimit;
+    this.jsonKeys = JsonKeys.forEnv(env);
+  }
+
+  /**
+   * Sets the limits of the documents decoded in a Quercus context.
+   *
+   * @param context The Quercus context.
+   * @param maxDepth How deep arrays and objects may be nested, 512 by default.
+   * @param maxSize The maximum length of decoded input in characters, 64M by default.
+   */
+  public static void setLimits(QuercusContext context, int maxDepth, int maxSize) {
+    limits.put(context, new int[] { maxDepth, maxSize });
+  }
+
+  public static int getMaxDepth(QuercusContext context) {
+    int[] contextLimits = limits.get(context);
+    return contextLimits != null ? contextLimits[0] : DEFAULT_MAX_DEPTH;
+  }
+
+  public static int getMaxSize(QuercusContext context) {
+    int[] contextLimits = limits.get(context);
+    return contextLimits != null ? contextLimits[1] : DEFAULT_MAX_SIZE;
+  }
+
+  /**
+   * Decodes a JSON document.
+   *
+   * @param env The Quercus environment.
+   * @param json The JSON document.
+   * @param assoc Whether objects are decoded to arrays rather than stdClass objects.
+   * @return The PHP value, or null if the document could not be decoded.
+   */
+  public static Value decode(Env env, String json, boolean assoc) {
+    int[] contextLimits = limits.get(env.getQuercus());
+    if (contextLimits == null) {
+      return decode(env, json, assoc, DEFAULT_MAX_DEPTH, DEFAULT_MAX_SIZE);
+    }
+    return decode(env, json, assoc, contextLimits[0], contextLimits[1]);
+  }
+
+  /**
+   * Decodes a JSON document with a depth and size limit.
+   */
+  public static Value decode(Env env, String json, boolean assoc, int depth, int size) {
+    JsonDecoder decoder = new JsonDecoder(env, assoc, depth, size);
+    Value value = decoder.decode(json);
+    env.setSpecialValue(ERROR, decoder.error);
+    return value;
+  }
+
+  /**
+   * Returns the reason the last decode in the environment failed, or null
+   * if it succeeded.
+   */
+  public static String lastError(Env env) {
+    Object error = env.getSpecialValue(ERROR);
+    return error instanceof String ? (String) error : null;
+  }
+
+  private Value decode(String json) {
+    if (json.length() > sizeLimit) {
+      error = String.format("Maximum size of %d characters exceeded", sizeLimit);
+      return null;
+    }
+
+    try (JsonParser parser = factory.createParser(json)) {
+      JsonToken token = parser.nextToken();
+      if (token == null) {
+        error = "Syntax error, empty document";
+        return null;
+      }
+      Value value = read(parser, token, 1, JsonKeys.DECODE_ROOT);
+      if (value != null && parser.nextToken() != null) {
+        // The parser accepts a sequence of root values, json_decode() does not.
+        error = "Syntax error, unexpected trailing content";
+        return null;
+      }
+      return value;
+    } catch (IOException e) {
+      error = "Syntax error, " + e.getMessage();
+      return null;
+    }
+  }
+
+  /**
+   * Reads the value starting at the current token, or returns null when a
+   * limit is exceeded. The site is the field name the value was found at,
+   * whose objects share a shape.
+   */
+  private Value read(JsonParser parser, JsonToken token, int depth, String site) throws IOException {
+    switch (token) {
+      case START_OBJECT:
+        return depth > depthLimit ? tooDeep() : readObject(parser, depth, site);
+      case START_ARRAY:
+        return depth > depthLimit ? tooDeep() : readArray(parser, depth, site);
+      case VALUE_STRING:
+        return env.createString(parser.getText());
+      case VALUE_NUMBER_INT:
+        if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+          // Like PHP, integers that do not fit a long become floats.
+          return DoubleValue.create(parser.getDoubleValue());
+        }
+        return LongValue.create(parser.getLongValue());
+      case VALUE_NUMBER_FLOAT:
+        return DoubleValue.create(parser.getDoubleValue());
+      case VALUE_TRUE:
+        return BooleanValue.TRUE;
+      case VALUE_FALSE:
+        return BooleanValue.FALSE;
+      case VALUE_NULL:
+        return NullValue.NULL;
+      default:
+        error = "Syntax error, unexpected " + token;
+        return null;
+    }
+  }
+
+  private Value readObject(JsonParser parser, int depth, String site) throws IOException {
+    JsonKeys.Builder keys = new JsonKeys.Builder(jsonKeys, site, 0);
+    int expected = keys.expectedSize();
+    Value result = assoc ? (expected > 0 ? new ArrayValueImpl(expected) : new ArrayValueImpl()) : env.createObject();
+    JsonToken token;
+    while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+      String key = parser.getCurrentName();
+      StringValue name = keys.next(env, key);
+      Value value = read(parser, parser.nextToken(), depth + 1, key);
+      if (value == null) {
+        return null;
+      }
+      if (assoc) {
+        result.put(name, value);
+      }
+      else {
+        result.putField(env, name, value);
+      }
+    }
+    if (token != JsonToken.END_OBJECT) {
+      error = token == null ? "Syntax error, unexpected end of input" : "Syntax error, unexpected " + token;
+      return null;
+    }
+    keys.finish();
+    return result;
+  }
+
+  private Value readArray(JsonParser parser, int depth, String site) throws IOException {
+    ArrayValue result = new ArrayValueImpl();
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == null) {
+        error = "Syntax error, unexpected end of input";
+        return null;
+      }
+      Value value = read(parser, token, depth + 1, site);
+      if (value == null) {
+        return null;
+      }
+      result.put(value);
+    }
+    return result;
+  }
+
+  private Value tooDeep() {
+    error = String.format("Maximum stack depth of %d exceeded", depthLimit);
+    return null;
+  }
+
+}
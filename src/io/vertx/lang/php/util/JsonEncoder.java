@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.ObjectExtValue;
+import com.caucho.quercus.env.Value;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+/**
+ * Encodes PHP arrays to JSON in a single pass.
+ *
+ * Walks the array and writes tokens straight to a Jackson generator
+ * instead of copying it into JsonObject and JsonArray instances first.
+ * Values are encoded as by PhpTypes.arrayToJsonObject() and
+ * arrayToJsonArray(): nested arrays with string keys become objects,
+ * other arrays become lists of their values, numeric strings become
+ * numbers and objects are encoded from their fields.
+ */
+public class JsonEncoder {
+
+  private static final JsonFactory factory = Json.mapper.getFactory();
+
+  private JsonEncoder() {
+  }
+
+  /**
+   * Indicates whether the keys of an array are 0, 1, 2... in order, in
+   * which case JSON.encode() encodes it as a list.
+   */
+  public static boolean isSequential(Env env, ArrayValue array) {
+    long i = 0;
+    Iterator<Value> iter = array.getKeyIterator(env);
+    while (iter.hasNext()) {
+      Value key = iter.next();
+      if (!(key instanceof LongValue) || key.toLong() != i) {
+        return false;
+      }
+      i++;
+    }
+    return true;
+  }
+
+  /**
+   * Encodes a PHP array to a JSON string.
+   *
+   * @param env The Quercus environment.
+   * @param array A PHP array or object.
+   * @param asObject Whether to encode the array as an object rather than a list.
+   */
+  public static String encode(Env env, Value array, boolean asObject) throws IOException {
+    StringWriter writer = new StringWriter();
+    try (JsonGenerator generator = factory.createGenerator(writer)) {
+      write(env, array, asObject, generator);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Encodes a PHP array as UTF-8 JSON into a Vert.x buffer, without going
+   * through a string.
+   *
+   * @param env The Quercus environment.
+   * @param array A PHP array or object.
+   * @param asObject Whether to encode the array as an object rather than a list.
+   * @param buffer The buffer to append to.
+   */
+  public static void encode(Env env, Value array, boolean asObject, Buffer buffer) throws IOException {
+    try (JsonGenerator generator = factory.createGenerator(new BufferOutputStream(buffer), JsonEncoding.UTF8)) {
+      write(env, array, asObject, generator);
+    }
+  }
+
+  /**
+   * Writes a PHP array to a generator.
+   *
+   * @param env The Quercus environment.
+   * @param array A PHP array or object.
+   * @param asObject Whether to write the array as an object rather than a list.
+   * @param generator The generator to write to.
+   */
+  public static void write(Env env, Value array, boolean asObject, JsonGenerator generator) throws IOException {
+    if (asObject) {
+      writeObject(env, array, generator);
+    }
+    else {
+      writeArray(env, array, generator);
+    }
+  }
+
+  private static void writeObject(Env env, Value array, JsonGenerator generator) throws IOException {
+    generator.writeStartObject();
+    Iterator<Map.Entry<Value, Value>> iter = array.getIterator(env);
+    while (iter.hasNext()) {
+      Map.Entry<Value, Value> entry = iter.next();
+      generator.writeFieldName(entry.getKey().toString());
+      writeValue(env, entry.getValue(), generator);
+    }
+    generator.writeEndObject();
+  }
+
+  private static void writeArray(Env env, Value array, JsonGenerator generator) throws IOException {
+    generator.writeStartArray();
+    Iterator<Value> iter = array.getValueIterator(env);
+    while (iter.hasNext()) {
+      writeValue(env, iter.next(), generator);
+    }
+    generator.writeEndArray();
+  }
+
+  private static void writeValue(Env env, Value value, JsonGenerator generator) throws IOException {
+    if (value.isArray()) {
+      write(env, value, isAssoc(env, value), generator);
+    }
+    else if (value.isBoolean()) {
+      generator.writeBoolean(value.toBoolean());
+    }
+    else if (value.isDouble()) {
+      generator.writeNumber(value.toJavaDouble());
+    }
+    else if (value.isNumeric()) {
+      generator.writeNumber(value.toLong());
+    }
+    else if (value.isString()) {
+      generator.writeString(value.toString());
+    }
+    else if (value instanceof ObjectExtValue) {
+      writeObject(env, value, generator);
+    }
+    else if (value.getClassName() == null || value.getClassName().equals("NULL")) {
+      generator.writeNull();
+    }
+    else {
+      generator.writeString(value.toString());
+    }
+  }
+
+  /**
+   * Appends the bytes written by a generator to a buffer.
+   */
+  private static class BufferOutputStream extends OutputStream {
+
+    private final Buffer buffer;
+
+    BufferOutputStream(Buffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      buffer.appendByte((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      buffer.appendBytes(bytes, offset, length);
+    }
+  }
+
+  /**
+   * Determines whether a nested PHP array is associative by looking at the keys.
+   */
+  private static boolean isAssoc(Env env, Value array) {
+    Iterator<Value> iter = array.getKeyIterator(env);
+    while (iter.hasNext()) {
+      Value key = iter.next();
+      if (key.isString() || key.isBoolean()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.util;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.StringValue;
+
+/**
+ * The object keys of decoded JSON, shared by the environments of a
+ * Quercus context.
+ *
+ * Keys are interned, so every decoded object with an "id" field uses the
+ * same PHP string for it rather than creating one per object. On top of
+ * that, the key set of the objects found at each field name is learned as
+ * a shape: while the objects at a field keep having the same keys in the
+ * same order, their keys are taken from the shape without any lookup and
+ * their arrays are created with the right capacity up front.
+ *
+ * A field name keeps a few shapes, picked by the keys of the object as
+ * they are read, so fields holding objects of a handful of schemas in turn do not keep
+ * replacing each other's shape. Once a field has all its shapes, one is
+ * only replaced after repeated misses. json_decode() and the conversion of
+ * Vert.x JSON learn from separate root sites, see DECODE_ROOT and
+ * CONVERT_ROOT.
+ *
+ * Both tables are bounded per context; once full, further keys and shapes
+ * are simply not cached.
+ */
+public class JsonKeys {
+
+  /**
+   * The site of the objects at the root of documents decoded by
+   * json_decode(), or in arrays at the root.
+   */
+  public static final String DECODE_ROOT = "";
+
+  /**
+   * The site of the Vert.x JSON objects converted to PHP, or of those in
+   * the converted arrays.
+   */
+  public static final String CONVERT_ROOT = "\0";
+
+  /**
+   * The number of shapes kept for each field name.
+   */
+  private static final int SHAPES_PER_SITE = 4;
+
+  /**
+   * How many objects at a field name must miss all its shapes before one
+   * of them is replaced.
+   */
+  private static final int REPLACE_AFTER_MISSES = 16;
+
+  private static final Map<QuercusContext, JsonKeys> contexts = Collections.synchronizedMap(new WeakHashMap<>());
+
+  private volatile int maxKeys = 4096;
+
+  private volatile int maxKeyLength = 64;
+
+  private volatile int maxShapes = 1024;
+
+  private final ConcurrentHashMap<String, StringValue> keys = new ConcurrentHashMap<>();
+
+  /**
+   * The shapes of the objects found at each field name.
+   */
+  private final ConcurrentHashMap<String, Site> shapes = new ConcurrentHashMap<>();
+
+  private final AtomicInteger shapeCount = new AtomicInteger();
+
+  private final LongAdder keyHits = new LongAdder();
+
+  private final LongAdder keyMisses = new LongAdder();
+
+  private final LongAdder shapeHits = new LongAdder();
+
+  private final LongAdder shapeMisses = new LongAdder();
+
+  private JsonKeys() {
+  }
+
+  /**
+   * Returns the keys of a Quercus context.
+   */
+  public static JsonKeys forContext(QuercusContext context) {
+    synchronized (contexts) {
+      JsonKeys jsonKeys = contexts.get(context);
+      if (jsonKeys == null) {
+        jsonKeys = new JsonKeys();
+        contexts.put(context, jsonKeys);
+      }
+      return jsonKeys;
+    }
+  }
+
+  /**
+   * Returns the keys of the context of an environment.
+   */
+  public static JsonKeys forEnv(Env env) {
+    return forContext(env.getQuercus());
+  }
+
+  /**
+   * Sets the maximum number of keys interned by the context, 4096 by
+   * default, and the length of the longest key interned, 64 by default.
+   */
+  public JsonKeys setMaxKeys(int keys, int keyLength) {
+    maxKeys = keys;
+    maxKeyLength = keyLength;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of shapes learned by the context, 1024 by
+   * default.
+   */
+  public JsonKeys setMaxShapes(int shapes) {
+    maxShapes = shapes;
+    return this;
+  }
+
+  /**
+   * Returns the PHP string of a key.
+   */
+  public StringValue intern(Env env, String key) {
+    StringValue value = keys.get(key);
+    if (value != null) {
+      keyHits.increment();
+      return value;
+    }
+    keyMisses.increment();
+    value = env.createString(key);
+    if (key.length() <= maxKeyLength && keys.size() < maxKeys) {
+      StringValue existing = keys.putIfAbsent(key, value);
+      if (existing != null) {
+        return existing;
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Returns the shapes learned for the objects at a field name, most
+   * recently learned last, or null.
+   */
+  Shape[] getShapes(String site) {
+    Site learned = shapes.get(site);
+    return learned != null ? learned.shapes : null;
+  }
+
+  /**
+   * Records whether an object had the shape learned for its field name.
+   */
+  public void recordShape(boolean hit) {
+    if (hit) {
+      shapeHits.increment();
+    }
+    else {
+      shapeMisses.increment();
+    }
+  }
+
+  /**
+   * Learns the shape of an object at a field name that matched none of its
+   * shapes. A field with all its shapes replaces its most recently learned
+   * one after repeated misses.
+   */
+  public void learn(String site, String[] names, StringValue[] values) {
+    Site learned = shapes.get(site);
+    if (learned == null) {
+      if (shapeCount.get() >= maxShapes) {
+        return;
+      }
+      learned = new Site();
+      Site existing = shapes.putIfAbsent(site, learned);
+      if (existing != null) {
+        learned = existing;
+      }
+    }
+    Shape shape = new Shape(names, values);
+    synchronized (learned) {
+      Shape[] current = learned.shapes;
+      if (current.length < SHAPES_PER_SITE && shapeCount.get() < maxShapes) {
+        Shape[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = shape;
+        learned.shapes = added;
+        shapeCount.incrementAndGet();
+      }
+      else if (current.length > 0 && ++learned.misses >= REPLACE_AFTER_MISSES) {
+        Shape[] replaced = current.clone();
+        replaced[replaced.length - 1] = shape;
+        learned.shapes = replaced;
+        learned.misses = 0;
+      }
+    }
+  }
+
+  public long getKeyHits() {
+    return keyHits.sum();
+  }
+
+  public long getKeyMisses() {
+    return keyMisses.sum();
+  }
+
+  public long getShapeHits() {
+    return shapeHits.sum();
+  }
+
+  public long getShapeMisses() {
+    return shapeMisses.sum();
+  }
+
+  /**
+   * Returns the sizes and hit rates of the tables as JSON.
+   */
+  public JsonObject toJson() {
+    long keyHits = getKeyHits();
+    long keyMisses = getKeyMisses();
+    long shapeHits = getShapeHits();
+    long shapeMisses = getShapeMisses();
+    return new JsonObject()
+        .put("keys", keys.size())
+        .put("keyHits", keyHits)
+        .put("keyMisses", keyMisses)
+        .put("keyHitRate", keyHits + keyMisses > 0 ? (double) keyHits / (keyHits + keyMisses) : 0.0)
+        .put("shapes", shapeCount.get())
+        .put("shapeHits", shapeHits)
+        .put("shapeMisses", shapeMisses)
+        .put("shapeHitRate", shapeHits + shapeMisses > 0 ? (double) shapeHits / (shapeHits + shapeMisses) : 0.0);
+  }
+
+  /**
+   * Clears the tables and their statistics.
+   */
+  public void clear() {
+    keys.clear();
+    shapes.clear();
+    shapeCount.set(0);
+    keyHits.reset();
+    keyMisses.reset();
+    shapeHits.reset();
+    shapeMisses.reset();
+  }
+
+  /**
+   * The shapes of a field name.
+   */
+  private static class Site {
+
+    /**
+     * Replaced rather than changed, so it is read without locking.
+     */
+    volatile Shape[] shapes = new Shape[0];
+
+    /**
+     * The misses since a shape was last replaced, guarded by the site.
+     */
+    int misses;
+  }
+
+  /**
+   * The keys of an object, in order.
+   */
+  public static class Shape {
+
+    private final String[] names;
+
+    private final StringValue[] values;
+
+    Shape(String[] names, StringValue[] values) {
+      this.names = names;
+      this.values = values;
+    }
+
+    public int size() {
+      return names.length;
+    }
+
+    /**
+     * Returns the PHP string of the key at a position if the object has
+     * the given key there, or null.
+     */
+    public StringValue match(int index, String name) {
+      if (index < names.length) {
+        String expected = names[index];
+        if (expected == name || expected.equals(name)) {
+          return values[index];
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Collects the keys of an object while it is converted, learning its
+   * shape when it differs from the one learned for its field name.
+   */
+  static class Builder {
+
+    private final JsonKeys jsonKeys;
+
+    private final String site;
+
+    private final Shape[] candidates;
+
+    private Shape shape;
+
+    private String[] names;
+
+    private StringValue[] values;
+
+    private int count;
+
+    private boolean mismatch;
+
+    Builder(JsonKeys jsonKeys, String site, int expectedSize) {
+      this.jsonKeys = jsonKeys;
+      this.site = site;
+      this.candidates = jsonKeys.getShapes(site);
+      this.shape = candidates != null && candidates.length > 0 ? candidates[candidates.length - 1] : null;
+      this.mismatch = shape == null;
+      if (mismatch) {
+        allocate(expectedSize > 0 ? expectedSize : 8);
+      }
+    }
+
+    /**
+     * @return the expected number of keys, or 0 if unknown
+     */
+    int expectedSize() {
+      return shape != null ? shape.size() : 0;
+    }
+
+    /**
+     * Returns the PHP string of the next key of the object.
+     */
+    StringValue next(Env env, String name) {
+      StringValue value = mismatch ? null : shape.match(count, name);
+      if (value == null && !mismatch && switchShape(name)) {
+        value = shape.match(count, name);
+      }
+      if (value == null) {
+        if (!mismatch) {
+          mismatch = true;
+          allocate(Math.max(8, count * 2));
+          System.arraycopy(shape.names, 0, names, 0, count);
+          System.arraycopy(shape.values, 0, values, 0, count);
+        }
+        value = jsonKeys.intern(env, name);
+        if (count == names.length) {
+          grow();
+        }
+        names[count] = name;
+        values[count] = value;
+      }
+      count++;
+      return value;
+    }
+
+    /**
+     * Records the shape of the object once all its keys were read.
+     */
+    void finish() {
+      if (!mismatch && count != shape.size()) {
+        switchShape(null);
+      }
+      boolean hit = !mismatch && count == shape.size();
+      jsonKeys.recordShape(hit);
+      if (!hit && count > 0) {
+        if (!mismatch) {
+          // A prefix of the learned shape.
+          names = Arrays.copyOf(shape.names, count);
+          values = Arrays.copyOf(shape.values, count);
+        }
+        jsonKeys.learn(site, Arrays.copyOf(names, count), Arrays.copyOf(values, count));
+      }
+    }
+
+    /**
+     * Switches to another shape of the site that starts with the keys read
+     * so far and has the given key next, or ends there when it is null.
+     *
+     * @return whether a shape was found
+     */
+    private boolean switchShape(String name) {
+      for (Shape candidate : candidates) {
+        if (candidate == shape || (name == null ? candidate.size() != count : candidate.match(count, name) == null)) {
+          continue;
+        }
+        int i = 0;
+        while (i < count && candidate.names[i].equals(shape.names[i])) {
+          i++;
+        }
+        if (i == count) {
+          shape = candidate;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void allocate(int size) {
+      names = new String[size];
+      values = new StringValue[size];
+    }
+
+    private void grow() {
+      names = Arrays.copyOf(names, names.length * 2);
+      values = Arrays.copyOf(values, values.length * 2);
+    }
+  }
+
+}
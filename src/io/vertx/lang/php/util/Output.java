@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.util;
+
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.lang.php.buffer.Buffer;
+import io.vertx.lang.php.streams.impl.BufferStream;
+import io.vertx.lang.php.streams.impl.RedirectStream;
+import io.vertx.lang.php.streams.impl.ResponseStream;
+
+import java.io.IOException;
+
+import com.caucho.quercus.annotation.Optional;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.NumberValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.vfs.StreamImpl;
+
+/**
+ * Runs PHP code with its output sent to a Vert.x buffer or an HTTP
+ * response instead of stdout, exposed to PHP as Vertx\Util\Output.
+ *
+ * Output written while an ob_start() buffer is active goes to that buffer
+ * as usual and is not captured.
+ */
+public class Output {
+
+  /**
+   * The Env special value holding the verticle's redirectable output stream.
+   */
+  public static final String STREAM = "vertx.output";
+
+  private Output() {
+  }
+
+  /**
+   * Calls a PHP callable and returns its output as a buffer.
+   */
+  public static Buffer capture(Env env, Value callable) {
+    PhpTypes.assertCallable(env, callable);
+    BufferStream target = new BufferStream();
+    redirect(env, target, callable, null);
+    return new Buffer(target.getBuffer());
+  }
+
+  /**
+   * Includes a PHP script and returns its output as a buffer.
+   */
+  public static Buffer captureInclude(Env env, StringValue path) {
+    BufferStream target = new BufferStream();
+    redirect(env, target, null, path);
+    return new Buffer(target.getBuffer());
+  }
+
+  /**
+   * Calls a PHP callable, writing its output to an HTTP response as chunks.
+   * The response is switched to chunked mode unless a content length is set.
+   */
+  public static void stream(Env env, Value response, Value callable, @Optional NumberValue chunkSize) {
+    PhpTypes.assertCallable(env, callable);
+    redirect(env, createResponseStream(env, response, chunkSize), callable, null);
+  }
+
+  /**
+   * Includes a PHP script, writing its output to an HTTP response as chunks.
+   */
+  public static void streamInclude(Env env, Value response, StringValue path, @Optional NumberValue chunkSize) {
+    redirect(env, createResponseStream(env, response, chunkSize), null, path);
+  }
+
+  private static ResponseStream createResponseStream(Env env, Value response, NumberValue chunkSize) {
+    HttpServerResponse httpResponse = (HttpServerResponse) response.toJavaObject(env, HttpServerResponse.class);
+    int size = PhpTypes.notNull(chunkSize) ? chunkSize.toInt() : ResponseStream.DEFAULT_CHUNK_SIZE;
+    return new ResponseStream(httpResponse, size);
+  }
+
+  /**
+   * Runs a callable or includes a script with the output sent to the target.
+   */
+  private static void redirect(Env env, StreamImpl target, Value callable, StringValue path) {
+    Object stream = env.getSpecialValue(STREAM);
+    if (!(stream instanceof RedirectStream)) {
+      env.error(PhpTypes.buildErrorMessage(env, "Output can only be redirected in a PHP verticle."));
+      return;
+    }
+    RedirectStream output = (RedirectStream) stream;
+
+    try {
+      env.getOriginalOut().flush();
+      output.push(target);
+      try {
+        if (callable != null) {
+          PhpTypes.toCallable(env, callable).call(env);
+        }
+        else {
+          env.include(path);
+        }
+        env.getOriginalOut().flush();
+      }
+      finally {
+        output.pop();
+        target.close();
+      }
+    }
+    catch (IOException e) {
+      env.error(PhpTypes.buildErrorMessage(env, "Failed to redirect output: %s", e.getMessage()));
+    }
+  }
+
+}
@@ -431,44 +431,55 @@ public class PhpTypes {
      * @return A populated PHP array.
      */
   public static Value arrayFromJson(Env env, JsonObject json, boolean asStdClass) {
+    return arrayFromJson(env, json, asStdClass, JsonKeys.forEnv(env), JsonKeys.CONVERT_ROOT);
+  }
+
+  /**
+   * Converts a JSON object found at a field name, taking its keys from the
+   * keys and shapes of the context.
+   */
+  private static Value arrayFromJson(Env env, JsonObject json, boolean asStdClass, JsonKeys jsonKeys, String site) {
+    Map<String, Object> map = json.getMap();
+    JsonKeys.Builder keys = new JsonKeys.Builder(jsonKeys, site, map.size());
     Value result;
     if(asStdClass) {
       result = env.createObject();
     }
     else{
-      result = new ArrayValueImpl();
+      result = new ArrayValueImpl(Math.max(keys.expectedSize(), map.size()));
     }
 
-    Map<String, Object> map = json.getMap();
     Iterator<String> iter = map.keySet().iterator();
     while (iter.hasNext()) {
       String key = iter.next();
+      StringValue name = keys.next(env, key);
       Object value = json.getValue(key);
       if (value instanceof JsonObject) {
         if(asStdClass) {
-          result.putField(env, env.createString(key), PhpTypes.arrayFromJson(env, (JsonObject) value, asStdClass));
+          result.putField(env, name, PhpTypes.arrayFromJson(env, (JsonObject) value, asStdClass, jsonKeys, key));
         }
         else {
-          result.put(env.createString(key), PhpTypes.arrayFromJson(env, (JsonObject) value, asStdClass));
+          result.put(name, PhpTypes.arrayFromJson(env, (JsonObject) value, asStdClass, jsonKeys, key));
         }
       }
       else if (value instanceof JsonArray) {
         if(asStdClass) {
-          result.putField(env, env.createString(key), PhpTypes.arrayFromJson(env, (JsonArray) value, asStdClass));
+          result.putField(env, name, PhpTypes.arrayFromJson(env, (JsonArray) value, asStdClass, jsonKeys, key));
         }
         else {
-          result.put(env.createString(key), PhpTypes.arrayFromJson(env, (JsonArray) value, asStdClass));
+          result.put(name, PhpTypes.arrayFromJson(env, (JsonArray) value, asStdClass, jsonKeys, key));
         }
       }
       else {
         if(asStdClass) {
-          result.putField(env, env.createString(key), env.wrapJava(value));
+          result.putField(env, name, env.wrapJava(value));
         }
         else {
-          result.put(env.createString(key), env.wrapJava(value));
+          result.put(name, env.wrapJava(value));
         }
       }
     }
+    keys.finish();
     return result;
   }
 
@@ -521,24 +532,24 @@ public class PhpTypes {
    * @return A populated PHP array.
    */
   public static ArrayValue arrayFromJson(Env env, JsonArray json, boolean asStdClass) {
-    ArrayValue result = new ArrayValueImpl();
-
-    Iterator<Object> iter = json.iterator();
-
-//    Iterator<Map.Entry<Value, Value>> iter = array.getIterator(env);
+    return arrayFromJson(env, json, asStdClass, JsonKeys.forEnv(env), JsonKeys.CONVERT_ROOT);
+  }
 
-//      Map.Entry<Value, Value> entry = iter.next();
-//
-//      Value key = entry.getKey();
-//      Value value = entry.getValue();
+  /**
+   * Converts a JSON array found at a field name. Objects in the array
+   * share the shape of the field.
+   */
+  private static ArrayValue arrayFromJson(Env env, JsonArray json, boolean asStdClass, JsonKeys jsonKeys, String site) {
+    ArrayValue result = new ArrayValueImpl(json.size());
 
+    Iterator<Object> iter = json.iterator();
     while (iter.hasNext()) {
       Object value = iter.next();
       if (value instanceof JsonObject) {
-        result.put(PhpTypes.arrayFromJson(env, (JsonObject) value, asStdClass));
+        result.put(PhpTypes.arrayFromJson(env, (JsonObject) value, asStdClass, jsonKeys, site));
       }
       else if (value instanceof JsonArray) {
-        result.put(PhpTypes.arrayFromJson(env, (JsonArray) value, asStdClass));
+        result.put(PhpTypes.arrayFromJson(env, (JsonArray) value, asStdClass, jsonKeys, site));
       }
       else {
         result.put(env.wrapJava(value));
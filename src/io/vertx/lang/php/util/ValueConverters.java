@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the MIT License (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertx.lang.php.util;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.DoubleValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.program.JavaClassDef;
+
+/**
+ * Converts the events passed to PHP handlers into PHP values.
+ *
+ * Produces the same values as Env.wrapJava(), without looking up the
+ * class definition of the event's type on every call: strings, numbers
+ * and booleans become the equivalent PHP scalars, and other objects such
+ * as buffers, JSON objects, messages or requests are wrapped with a class
+ * definition resolved once per Quercus context. Converters for other types
+ * can be registered, and apply to subclasses of the type as well.
+ */
+public class ValueConverters {
+
+  private static final Map<Class<?>, ValueConverter<?>> registry = new ConcurrentHashMap<>();
+
+  private static final Map<QuercusContext, ValueConverters> contexts = Collections.synchronizedMap(new WeakHashMap<>());
+
+  static {
+    register(String.class, (env, value) -> env.createString(value));
+    register(Long.class, (env, value) -> LongValue.create(value));
+    register(Integer.class, (env, value) -> LongValue.create(value));
+    register(Short.class, (env, value) -> LongValue.create(value));
+    register(Byte.class, (env, value) -> LongValue.create(value));
+    register(Double.class, (env, value) -> DoubleValue.create(value));
+    register(Float.class, (env, value) -> DoubleValue.create(value));
+    register(Boolean.class, (env, value) -> BooleanValue.create(value));
+  }
+
+  /**
+   * The converter of each type converted so far.
+   */
+  private final ConcurrentHashMap<Class<?>, ValueConverter<Object>> resolved = new ConcurrentHashMap<>();
+
+  private ValueConverters() {
+  }
+
+  /**
+   * Registers the converter of a type, replacing the class definition
+   * based wrapping of objects of the type and its subclasses.
+   */
+  public static <T> void register(Class<T> type, ValueConverter<? super T> converter) {
+    registry.put(type, converter);
+    synchronized (contexts) {
+      for (ValueConverters converters : contexts.values()) {
+        converters.resolved.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the converters of a Quercus context.
+   */
+  public static ValueConverters forContext(QuercusContext context) {
+    synchronized (contexts) {
+      ValueConverters converters = contexts.get(context);
+      if (converters == null) {
+        converters = new ValueConverters();
+        contexts.put(context, converters);
+      }
+      return converters;
+    }
+  }
+
+  /**
+   * Returns the converters of the context of an environment.
+   */
+  public static ValueConverters forEnv(Env env) {
+    return forContext(env.getQuercus());
+  }
+
+  /**
+   * Converts an object to a PHP value.
+   */
+  public Value toValue(Env env, Object object) {
+    if (object == null) {
+      return NullValue.NULL;
+    }
+    if (object instanceof Value) {
+      return (Value) object;
+    }
+
+    Class<?> type = object.getClass();
+    ValueConverter<Object> converter = resolved.get(type);
+    if (converter == null) {
+      converter = resolve(env, type);
+      resolved.put(type, converter);
+    }
+    return converter.convert(env, object);
+  }
+
+  /**
+   * Finds the converter of a type, looking at its superclasses first and
+   * then at every interface it implements, nearest first.
+   */
+  @SuppressWarnings("unchecked")
+  private ValueConverter<Object> resolve(Env env, Class<?> type) {
+    Deque<Class<?>> interfaces = new ArrayDeque<>();
+    for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+      ValueConverter<?> converter = registry.get(current);
+      if (converter != null) {
+        return (ValueConverter<Object>) converter;
+      }
+      Collections.addAll(interfaces, current.getInterfaces());
+    }
+    Set<Class<?>> visited = new HashSet<>();
+    while (!interfaces.isEmpty()) {
+      Class<?> iface = interfaces.poll();
+      if (!visited.add(iface)) {
+        continue;
+      }
+      ValueConverter<?> converter = registry.get(iface);
+      if (converter != null) {
+        return (ValueConverter<Object>) converter;
+      }
+      Collections.addAll(interfaces, iface.getInterfaces());
+    }
+
+    if (type.isArray()) {
+      // Quercus copies Java arrays into PHP arrays.
+      return (e, object) -> e.wrapJava(object);
+    }
+
+    final JavaClassDef def = env.getJavaClassDefinition(type);
+    return (e, object) -> def.wrap(e, object);
+  }
+
+}